@@ -1,13 +1,24 @@
 package yapl.impl;
 
 import yapl.interfaces.BackendBinSM;
+import yapl.interfaces.Comparison;
 import yapl.interfaces.ExtendedBackendBinSM;
 import yapl.interfaces.MemoryRegion;
 import yapl.lib.YaplException;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.util.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
 
 import static yapl.impl.Instruction.*;
 
@@ -18,39 +29,94 @@ import static yapl.impl.Instruction.*;
  */
 public class BackendMJ implements ExtendedBackendBinSM {
 
-    private static final byte ZERO = 0;
+    /**
+     * magic bytes, codeSize, dataSize and startPC
+     */
+    private static final int HEADER_SIZE = 2 + 3 * 4;
+
+    private static final int NONE = -1;
+
+    /**
+     * default highest cost of inlined calls, see {@link InlineCandidate}
+     */
+    public static final int DEFAULT_INLINE_THRESHOLD = 24;
 
-    private List<Byte> codeBuffer = new ArrayList<>();
-    private List<Byte> staticDataBuffer = new LinkedList<>();
+    private final CodeBuffer codeBuffer = new CodeBuffer();
+    private final StaticDataSegment staticData = new StaticDataSegment();
+    private final StringPool stringPool;
 
-    private Map<String, Integer> codeAddressForLabels = new HashMap<>();
-    private Map<String, List<Integer>> backpatchingAddressesForLabels = new HashMap<>();
+    private final LabelTable labels = new LabelTable();
+
+    /**
+     * handles of the labels used via the String based {@link BackendBinSM} interface
+     */
+    private final Map<String, Integer> namedLabels = new HashMap<>();
 
     private Procedure mainProcedure;
     private Procedure currentlyDefinedProcedure;
 
     /**
-     * @param number - input operand comprising of >= 1 bytes
-     * @param type   - input type conducting the length of the output list
-     * @return byte representation of number
+     * start addresses of all completely emitted procedures, in ascending order
      */
-    private static List<Byte> numberAsBytes(int number, OperandType type) {
-        List<Byte> bytes;
+    private int[] procedureStarts = new int[16];
+    private int nProcedures = 0;
 
-        switch (type) {
-            default:
-            case s32:
-                bytes = ByteUtils.numberAsBytes(/*(int)*/ number);
-                break;
-            case s16:
-                bytes = ByteUtils.numberAsBytes((short) number);
-                break;
-            case s8:
-                bytes = ByteUtils.numberAsBytes((byte) number);
-                break;
-        }
+    /**
+     * nesting depth of dead code regions, and where the outermost one started
+     */
+    private int deadCodeDepth = 0;
+    private int deadCodeStart, deadCodeLabelMark;
+
+    /**
+     * number of dimensions of the arrays being allocated, innermost allocation last;
+     * array allocations may be nested within dimension length expressions
+     */
+    private int[] arrayRanks = new int[4];
+    private int nArrayRanks = 0;
+
+    /**
+     * labels of the runtime helper procedures called so far (NONE if unused),
+     * which are emitted once at the end of the program, see {@link #emitRuntimeHelpers()}
+     */
+    private int writeBooleanHelper = NONE;
+    private int[] allocArrayHelpers = new int[0];
+    private boolean runtimeHelpersEmitted = false;
+
+    /**
+     * highest cost of inlined calls, negative if inlining is disabled
+     */
+    private int inlineThreshold = DEFAULT_INLINE_THRESHOLD;
+
+    /**
+     * completed procedures which are small enough to be inlined, by label
+     */
+    private final Map<Integer, InlineCandidate> inlineCandidates = new HashMap<>();
+
+    /**
+     * channel receiving the streamed object file, see {@link #beginObjectFile(FileChannel)}
+     */
+    private FileChannel objectFile;
 
-        return bytes;
+    /**
+     * references within the streamed code, which tell whether it must be read back for the layout
+     */
+    private StreamedCodeReferences streamedReferences;
+
+    /**
+     * code address of main() and the final code, valid after {@link #finishCode()}
+     */
+    private int startPC;
+    private CodeBuffer finalCode;
+
+    public BackendMJ() {
+        this(true);
+    }
+
+    /**
+     * @param shareStringSuffixes whether string constants may be stored as word-aligned suffix of another one
+     */
+    public BackendMJ(boolean shareStringSuffixes) {
+        stringPool = new StringPool(staticData, shareStringSuffixes);
     }
 
     /**
@@ -66,19 +132,14 @@ public class BackendMJ implements ExtendedBackendBinSM {
      * @param instruction - holds opcode value
      */
     private void addInstructionToCodeBuffer(Instruction instruction) {
-        codeBuffer.add(instruction.value);
+        codeBuffer.put8(instruction.value);
     }
 
     /**
-     * sets the address of a label
-     *
-     * @param label
-     * @param address
+     * @return handle of the label with the given name, created on first use
      */
-    private void addToBackpatchingMap(String label, Integer address) {
-        List<Integer> list = backpatchingAddressesForLabels.getOrDefault(label, new LinkedList<>());
-        list.add(address);
-        backpatchingAddressesForLabels.put(label, list);
+    private int namedLabel(String label) {
+        return namedLabels.computeIfAbsent(label, l -> labels.newLabel());
     }
 
     /**
@@ -92,22 +153,17 @@ public class BackendMJ implements ExtendedBackendBinSM {
      * @param type    the type/size of the operand
      */
     private void addExplicitOperandToCodeBuffer(int operand, OperandType type) {
-        codeBuffer.addAll(numberAsBytes(operand, type));
+        codeBuffer.put(operand, type);
     }
 
     /**
-     * adds nBytes null-bytes as placeholders to the code buffer (for later backpatching)
+     * reserves nBytes placeholder bytes in the code buffer (for later backpatching)
      *
      * @param nBytes - number of placeholder bytes needed
      * @return the position of the FIRST placeholder byte
      */
     private int addPlaceholderBytesToCodeBuffer(int nBytes) {
-        int startOfArea = getNextCodeBufferAdress();
-
-        for (int i = 0; i < nBytes; i++)
-            codeBuffer.add(null);
-
-        return startOfArea;
+        return codeBuffer.reserve(nBytes);
     }
 
     @Override
@@ -124,102 +180,266 @@ public class BackendMJ implements ExtendedBackendBinSM {
         return value ? 1 : 0;
     }
 
+    @Override
+    public int newLabel() {
+        return labels.newLabel();
+    }
+
+    @Override
+    public int codeSize() {
+        return codeBuffer.size();
+    }
+
     @Override
     public void assignLabel(String label) {
-        if (codeAddressForLabels.putIfAbsent(label, getNextCodeBufferAdress()) != null)
-            throw new IllegalStateException("Label already exists.");
+        assignLabel(namedLabel(label));
+    }
+
+    @Override
+    public void assignLabel(int label) {
+        labels.assign(label, getNextCodeBufferAdress(), codeBuffer);
+    }
+
+    @Override
+    public void mergeLabels(int label, int into) {
+        labels.merge(label, into, codeBuffer);
+    }
+
+    @Override
+    public void beginDeadCode() {
+        if (deadCodeDepth++ == 0) {
+            deadCodeStart = getNextCodeBufferAdress();
+            deadCodeLabelMark = labels.assignedCount();
+        }
+    }
+
+    @Override
+    public void endDeadCode() {
+        if (deadCodeDepth == 0)
+            throw new IllegalStateException("No dead code region to end.");
+
+        if (--deadCodeDepth == 0) {
+            codeBuffer.truncate(deadCodeStart);
+            if (currentlyDefinedProcedure != null)
+                currentlyDefinedProcedure.discardAccesses(deadCodeStart);
+            labels.discard(deadCodeLabelMark, deadCodeStart);
+        }
     }
 
     /**
-     * iterates over all defined labels and inserts their address to all location the label is referenced
+     * Completes the code: emits the runtime helpers, drops unreachable procedures together with the
+     * strings only they print, and lays out code larger than 32K. Sets {@link #startPC}.
+     *
+     * @return the final code, which is the code buffer itself unless it was laid out anew
      */
-    private void backPatchAllLocations() {
-        for (String label : codeAddressForLabels.keySet()) {
+    private CodeBuffer finishCode() {
+        if (finalCode != null)
+            return finalCode;
 
-            // address the label points to
-            Integer address = codeAddressForLabels.get(label);
+        if (mainProcedure == null)
+            throw new IllegalStateException("No address for main procedure found!");
 
-            // references in the code
-            List<Integer> references = backpatchingAddressesForLabels.get(label);
+        emitRuntimeHelpers();
 
-            if (references != null)
-                for (Integer reference : references)
-                    backpatch(reference, address.shortValue());
-        }
+        if (labels.pendingFixups() > 0)
+            throw new IllegalStateException(labels.pendingFixups() + " reference(s) to labels which were never assigned.");
+
+        checkCodeSize();
+
+        startPC = labels.address(mainProcedure.label);
+        int[] procedureStarts = Arrays.copyOf(this.procedureStarts, nProcedures);
+        if (streamedReferences != null && streamedReferences.isUnchanged(codeBuffer, procedureStarts, startPC, stringPool))
+            return finalCode = codeBuffer;
+
+        // the layout needs all code in memory, streamed code (at most 64K) is read back with a single read
+        CodeBuffer code = codeBuffer.isStreaming() ? new CodeBuffer(codeBuffer.toByteArray()) : codeBuffer;
+        ProgramLayout layout = new ProgramLayout(code, procedureStarts, startPC);
+
+        BitSet unusedStrings = stringPool.unusedWords(layout.stringReferences());
+        if (layout.isUnchanged() && unusedStrings.isEmpty())
+            return finalCode = codeBuffer;
+
+        int[] staticAddresses = staticData.remove(unusedStrings);
+        startPC = layout.startPC();
+        return finalCode = layout.encode(address -> staticAddresses[address]);
     }
 
-    @Override
-    public void writeObjectFile(OutputStream outStream) throws IOException {
-        LinkedList<Byte> header = new LinkedList<>();
+    /**
+     * @return header of an object file with the given code size
+     */
+    private ByteBuffer header(int codeSize) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
 
         // magic bytes 'MJ'
-        header.add((byte) 0x4D);
-        header.add((byte) 0x4A);
+        header.put((byte) 0x4D);
+        header.put((byte) 0x4A);
 
         // codeSize: number of bytes in code area
-        header.addAll(ByteUtils.numberAsBytes(codeBuffer.size()));
+        header.putInt(codeSize);
         // (static) dataSize: number of words (32 bits) in static data area
-        header.addAll(ByteUtils.numberAsBytes(staticDataBuffer.size() / wordSize()));
-        // startPC: main() or start of code area if there is no main
+        header.putInt(staticData.size());
+        // startPC: main()
+        header.putInt(startPC);
+        header.flip();
 
-        if (mainProcedure == null)
-            throw new IllegalStateException("No address for main procedure found!");
+        return header;
+    }
 
-        Integer startPc = codeAddressForLabels.get(mainProcedure.name);
+    /**
+     * Assembles the object file.
+     *
+     * @return header, code and static data segments, ready to be written in this order
+     */
+    private ByteBuffer[] objectFileSegments() {
+        if (codeBuffer.isStreaming())
+            throw new IllegalStateException("The code is streamed, the object file must be completed with writeObjectFile(FileChannel).");
+
+        CodeBuffer code = finishCode();
+        return new ByteBuffer[]{
+                header(code.size()),
+                ByteBuffer.wrap(code.array(), 0, code.size()),
+                staticData.toByteBuffer()
+        };
+    }
 
-        header.addAll(ByteUtils.numberAsBytes(codeAddressForLabels.getOrDefault("main", startPc)));
+    /**
+     * Code addresses are s16 operands, which are read as unsigned until {@link ProgramLayout} has moved
+     * the targets above 32K out of their reach. Beyond 64K, they cannot be told apart anymore.
+     */
+    private void checkCodeSize() {
+        if (codeBuffer.size() > ProgramLayout.MAX_CODE_SIZE)
+            throw new CodeLimitException(ErrorType.CodeTooLarge, codeBuffer.size() + " bytes, at most "
+                    + ProgramLayout.MAX_CODE_SIZE + " are supported");
+    }
+
+    private static long objectFileSize(ByteBuffer[] segments) {
+        long size = 0;
+        for (ByteBuffer segment : segments)
+            size += segment.remaining();
+        return size;
+    }
+
+    @Override
+    public void writeObjectFile(OutputStream outStream) throws IOException {
+        if (outStream instanceof FileOutputStream) {
+            writeObjectFile(((FileOutputStream) outStream).getChannel());
+            return;
+        }
 
-        backPatchAllLocations();
+        for (ByteBuffer segment : objectFileSegments())
+            outStream.write(segment.array(), segment.arrayOffset() + segment.position(), segment.remaining());
+    }
 
-        for (Byte b : header)
-            outStream.write(b);
+    /**
+     * Streams the code to the channel: the code of every procedure is written as soon as the
+     * procedure is complete, so only the code of a single procedure is kept in memory.
+     * References to procedures which are emitted later are patched within the file.
+     * The code is only read back (with a single read) if the final layout drops or moves code.
+     * The channel must be readable and writable.
+     */
+    @Override
+    public void beginObjectFile(FileChannel channel) {
+        if (codeBuffer.size() > 0)
+            throw new IllegalStateException("Code has already been emitted.");
 
-//        int idx = 0;
-        for (Byte b : codeBuffer) {
-//            if(b == null)
-//                throw new RuntimeException("Error for element: " + idx + ":" + codeBuffer.size());
-//            idx++;
+        objectFile = channel;
+        streamedReferences = new StreamedCodeReferences();
+        codeBuffer.streamTo(channel, HEADER_SIZE);
+    }
 
-            outStream.write(b);
+    /**
+     * Writes the object file with a single gathering write of all segments.
+     * If the code has been streamed to the channel, the static data and the header are written.
+     * The channel is left open.
+     */
+    @Override
+    public void writeObjectFile(FileChannel channel) throws IOException {
+        if (codeBuffer.isStreaming()) {
+            completeObjectFile(channel);
+            return;
         }
 
-        for (Byte b : staticDataBuffer)
-            outStream.write(b);
+        ByteBuffer[] segments = objectFileSegments();
+        long remaining = objectFileSize(segments);
+
+        // a gathering write may be partial, e.g. for non-blocking channels
+        while (remaining > 0)
+            remaining -= channel.write(segments);
     }
 
-    @Override
-    public int allocStaticData(int words) {
-        int sizeBeforeNewString = staticDataBuffer.size() / 4;
+    private void completeObjectFile(FileChannel channel) throws IOException {
+        if (channel != objectFile)
+            throw new IllegalStateException("The code is streamed to another channel.");
 
-        for (int i = 0; i < words * wordSize(); ++i)
-            staticDataBuffer.add(ZERO);
+        CodeBuffer code = finishCode();
+        if (code == codeBuffer)
+            codeBuffer.flush();
+        else
+            write(channel, ByteBuffer.wrap(code.array(), 0, code.size()), HEADER_SIZE);
 
-        return sizeBeforeNewString;
+        ByteBuffer data = staticData.toByteBuffer();
+        long size = HEADER_SIZE + code.size() + data.remaining();
+
+        write(channel, data, HEADER_SIZE + code.size());
+        write(channel, header(code.size()), 0);
+        channel.truncate(size);
     }
 
-    @Override
-    public int allocStringConstant(String string) {
-        int sizeBeforeNewString = staticDataBuffer.size() / 4;
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+    }
 
-        for (char c : string.toCharArray())
-            staticDataBuffer.add((byte) c);
-        staticDataBuffer.add((byte) '\0');
+    /**
+     * Writes the object file by copying all segments into a memory mapping of the output file.
+     * Existing files are truncated.
+     */
+    @Override
+    public void writeObjectFileMapped(Path path) throws IOException {
+        ByteBuffer[] segments = objectFileSegments();
+        long size = objectFileSize(segments);
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            for (ByteBuffer segment : segments)
+                mapping.put(segment);
+            mapping.force();
+        }
+    }
 
-        int paddingSize = (4 - (staticDataBuffer.size() % 4)) % 4;
-        for (int i = 0; i < paddingSize; i++)
-            staticDataBuffer.add((byte) 0);
+    @Override
+    public int allocStaticData(int words) {
+        return staticData.allocWords(words);
+    }
 
-        return sizeBeforeNewString;
+    /**
+     * Allocates the string in the string pool, so equal string constants share their storage.
+     */
+    @Override
+    public int allocStringConstant(String string) {
+        return stringPool.intern(string);
     }
 
     @Override
     public void enterProc(String label, int nParams, boolean main) {
+        enterProc(namedLabel(label), nParams, main);
+    }
+
+    @Override
+    public void enterProc(int label, int nParams, boolean main) {
         if (currentlyDefinedProcedure != null)
             throw new IllegalStateException("Sub-Procedures are not allowed.");
 
         if (main && this.mainProcedure != null)
             throw new IllegalStateException("There can only be one main procedure.");
 
+        if (nParams > SpillRecord.MAX_FRAME_SIZE)
+            throw new CodeLimitException(ErrorType.TooManyParams, nParams + ", at most " + SpillRecord.MAX_FRAME_SIZE + " are supported");
+
+        int startAddress = getNextCodeBufferAdress();
+        int labelMark = labels.assignedCount();
+
         // mark start of method with label provided
         assignLabel(label);
 
@@ -231,7 +451,7 @@ public class BackendMJ implements ExtendedBackendBinSM {
 
         int backPatchLocation = addPlaceholderBytesToCodeBuffer(1);
 
-        currentlyDefinedProcedure = new Procedure(label, nParams, backPatchLocation);
+        currentlyDefinedProcedure = new Procedure(label, nParams, startAddress, labelMark, backPatchLocation);
 
         if (main)
             mainProcedure = currentlyDefinedProcedure;
@@ -251,27 +471,38 @@ public class BackendMJ implements ExtendedBackendBinSM {
         return currentlyDefinedProcedure.allocStackVariable(words);
     }
 
-    private void backpatch(int location, List<Byte> bytes) {
-        for (int i = 0; i < bytes.size(); i++) {
-//            if (codeBuffer.get(location + i) != null)
-//                throw new IllegalStateException(String.format("Codebuffer has no placeholder at location %d", location + i));
-
-            codeBuffer.set(location + i, bytes.get(i));
+    @Override
+    public int allocStackCleared(int words) {
+        int offset = allocStack(words);
+        for (int word = offset; word < offset + words; word++) {
+            loadConst(0);
+            storeWord(MemoryRegion.STACK, word);
         }
+        return offset;
     }
 
-    private void backpatch(int location, byte value) {
-        backpatch(location, ByteUtils.numberAsBytes(value));
+    @Override
+    public void freeStack(int offset, int words) {
+        if (currentlyDefinedProcedure == null)
+            throw new IllegalStateException("Cannot free variables without a procedure.");
+
+        currentlyDefinedProcedure.freeStackVariable(offset, words);
     }
 
-    private void backpatch(int location, short value) {
-        backpatch(location, ByteUtils.numberAsBytes(value));
+    private void backpatch(int location, byte value) {
+        codeBuffer.patch8(location, value);
     }
 
     @Override
     public void exitProc(String label) {
+        exitProc(namedLabel(label));
+    }
+
+    @Override
+    public void exitProc(int label) {
         // backpatch framesize (which we now know because all variables were declared and we know their size)
-        backpatch(currentlyDefinedProcedure.backPatchLocationForFrameSize, currentlyDefinedProcedure.calculateFrameSize());
+        int frameSize = currentlyDefinedProcedure.calculateFrameSize();
+        backpatch(currentlyDefinedProcedure.backPatchLocationForFrameSize, (byte) Math.min(frameSize, SpillRecord.MAX_FRAME_SIZE));
 
         // mark teardown with provided label
         assignLabel(label);
@@ -280,22 +511,185 @@ public class BackendMJ implements ExtendedBackendBinSM {
         addInstructionToCodeBuffer(exit);
         addInstructionToCodeBuffer(return_);
 
+        checkCodeSize();
+        Procedure procedure = currentlyDefinedProcedure;
+        if (frameSize > SpillRecord.MAX_FRAME_SIZE) {
+            int freeList = allocStaticData(1);
+            rewriteProcedure(procedure, code -> SpillRecord.rewrite(code, procedure, freeList));
+        }
+        rewriteProcedure(procedure, Peephole::optimize);
+        if (procedure != mainProcedure)
+            rewriteProcedure(procedure, TailCalls::rewrite);
+        if (inlineThreshold >= 0 && frameSize <= SpillRecord.MAX_FRAME_SIZE)
+            addInlineCandidate(procedure);
+        if (streamedReferences != null)
+            streamedReferences.add(codeBuffer, procedure.startAddress,
+                    labels.pendingFixupLocations(0, getNextCodeBufferAdress()));
+        codeBuffer.flush();
+
+        if (nProcedures == procedureStarts.length)
+            procedureStarts = Arrays.copyOf(procedureStarts, nProcedures * 2);
+        procedureStarts[nProcedures++] = currentlyDefinedProcedure.startAddress;
+
         currentlyDefinedProcedure = null;
     }
 
+    /**
+     * Rewrites the code of the completely emitted procedure, e.g. with the peephole optimizer.
+     * The procedure is the last code in the buffer, so no other code has to be moved,
+     * only the labels and pending references within the procedure.
+     */
+    private void rewriteProcedure(Procedure procedure, Consumer<ProcedureCode> rewrite) {
+        int start = procedure.startAddress, end = getNextCodeBufferAdress();
+
+        ProcedureCode code = ProcedureCode.decode(codeBuffer, start, end,
+                labels.pendingFixupLocations(start, end), labels.assignedAddresses(procedure.labelMark));
+        rewrite.accept(code);
+        code.encode(codeBuffer);
+
+        labels.relocate(procedure.labelMark, start, end, code::newAddress);
+    }
+
+    private void addInlineCandidate(Procedure procedure) {
+        int start = procedure.startAddress, end = getNextCodeBufferAdress();
+        if (labels.pendingFixupLocations(start, end).length > 0)
+            return;
+
+        ProcedureCode code = ProcedureCode.decode(codeBuffer, start, end,
+                new int[0], labels.assignedAddresses(procedure.labelMark));
+        InlineCandidate candidate = InlineCandidate.of(code, inlineThreshold);
+        if (candidate != null)
+            inlineCandidates.put(procedure.label, candidate);
+    }
+
+    @Override
+    public void setInlineThreshold(int threshold) {
+        inlineThreshold = threshold;
+    }
+
     @Override
     public void allocHeap(int words) {
         addInstructionToCodeBuffer(new_);
         addExplicitOperandToCodeBuffer(words, OperandType.s16);
     }
 
+    /**
+     * The dimension lengths are kept on the expression stack until {@link #allocArray()}.
+     */
     @Override
     public void storeArrayDim(int dim) {
-        throw new UnsupportedOperationException("Only 1/2d arrays are supported.");
+        if (dim == 0) {
+            if (nArrayRanks == arrayRanks.length)
+                arrayRanks = Arrays.copyOf(arrayRanks, nArrayRanks * 2);
+            nArrayRanks++;
+        } else if (nArrayRanks == 0 || arrayRanks[nArrayRanks - 1] != dim) {
+            throw new IllegalStateException("Array dimensions must be stored in order.");
+        }
+
+        arrayRanks[nArrayRanks - 1] = dim + 1;
     }
 
+    /**
+     * Allocates a n-dimensional array as an array of arrays of ... of words.
+     * Arrays of more than one dimension are allocated by a runtime helper procedure per rank,
+     * which takes the dimension lengths as parameters.
+     */
     @Override
     public void allocArray() {
+        if (nArrayRanks == 0)
+            throw new IllegalStateException("Array dimensions must be stored before allocating an array.");
+        int rank = arrayRanks[--nArrayRanks];
+
+        if (rank == 1) {
+            newArray();
+            return;
+        }
+
+        if (rank >= allocArrayHelpers.length) {
+            int n = allocArrayHelpers.length;
+            allocArrayHelpers = Arrays.copyOf(allocArrayHelpers, rank + 1);
+            Arrays.fill(allocArrayHelpers, n, rank + 1, NONE);
+        }
+        if (allocArrayHelpers[rank] == NONE)
+            allocArrayHelpers[rank] = newLabel();
+
+        callProc(allocArrayHelpers[rank]);
+    }
+
+    /**
+     * Allocates a n-dimensional array using inline loops, the dimension lengths are popped from the
+     * expression stack. The lengths of all but the first dimension are moved to temporary words of the
+     * current frame, which also hold the arrays and loop indices of the enclosing dimensions.
+     */
+    private void allocArrayInline(int rank) {
+        // per dimension but the last one: array, loop index, length of the next dimension
+        int temporaries = allocStack(3 * (rank - 1));
+
+        for (int dim = rank - 1; dim > 0; dim--)
+            storeWord(MemoryRegion.STACK, lengthSlot(temporaries, dim));
+
+        newArray();
+        allocSubArrays(temporaries, 0, rank);
+
+        freeStack(temporaries, 3 * (rank - 1));
+    }
+
+    /**
+     * Fills the elements of the array of the given dimension on the expression stack with new arrays
+     * of the next dimension, recursively. The array stays on the expression stack.
+     * <pre>
+     * for (i = 0; i &lt; #a; i++)
+     *     a[i] = new int[length(dim + 1)]...;
+     * </pre>
+     */
+    private void allocSubArrays(int temporaries, int dim, int rank) {
+        int array = temporaries + 3 * dim;
+        int index = temporaries + 3 * dim + 1;
+        int loopLabel = newLabel(), endLabel = newLabel();
+
+        storeWord(MemoryRegion.STACK, array);
+        loadConst(0);
+        storeWord(MemoryRegion.STACK, index);
+
+        assignLabel(loopLabel);
+        loadWord(MemoryRegion.STACK, index);
+        if (dim == 0) {
+            loadWord(MemoryRegion.STACK, array);
+            arrayLength();
+        } else {
+            loadWord(MemoryRegion.STACK, lengthSlot(temporaries, dim));
+        }
+        branchIf(Comparison.GE, endLabel);
+
+        loadWord(MemoryRegion.STACK, array);
+        loadWord(MemoryRegion.STACK, index);
+        loadWord(MemoryRegion.STACK, lengthSlot(temporaries, dim + 1));
+        newArray();
+        if (dim + 2 < rank)
+            allocSubArrays(temporaries, dim + 1, rank);
+        storeArrayElement();
+
+        loadWord(MemoryRegion.STACK, index);
+        loadConst(1);
+        add();
+        storeWord(MemoryRegion.STACK, index);
+        jump(loopLabel);
+
+        assignLabel(endLabel);
+        loadWord(MemoryRegion.STACK, array);
+    }
+
+    /**
+     * @return frame offset of the length of a dimension other than the first one
+     */
+    private static int lengthSlot(int temporaries, int dim) {
+        return temporaries + 3 * (dim - 1) + 2;
+    }
+
+    /**
+     * Allocates a one-dimensional array of words, the length is popped from the expression stack.
+     */
+    private void newArray() {
         addInstructionToCodeBuffer(newarray);
         // operand is "type". 0: bool, 1: int
         addExplicitOperandToCodeBuffer(1, OperandType.s8);
@@ -336,6 +730,7 @@ public class BackendMJ implements ExtendedBackendBinSM {
         switch (region) {
             default:
             case STACK:
+                recordStackAccess(offset);
                 addInstructionToCodeBuffer(load);
                 addExplicitOperandToCodeBuffer(offset, OperandType.s8);
                 break;
@@ -350,11 +745,22 @@ public class BackendMJ implements ExtendedBackendBinSM {
         }
     }
 
+    /**
+     * Words beyond the s8 range get a cropped operand, which is fixed by {@link SpillRecord}.
+     */
+    private void recordStackAccess(int offset) {
+        if (currentlyDefinedProcedure == null)
+            throw new IllegalStateException("Cannot access the stack without a procedure.");
+
+        currentlyDefinedProcedure.recordAccess(getNextCodeBufferAdress(), offset);
+    }
+
     @Override
     public void storeWord(MemoryRegion region, int offset) {
         switch (region) {
             default:
             case STACK:
+                recordStackAccess(offset);
                 addInstructionToCodeBuffer(store);
                 addExplicitOperandToCodeBuffer(offset, OperandType.s8);
                 break;
@@ -393,6 +799,50 @@ public class BackendMJ implements ExtendedBackendBinSM {
         addInstructionToCodeBuffer(print);
     }
 
+    /**
+     * Writes "True" or "False" by calling a runtime helper procedure.
+     */
+    @Override
+    public void writeBoolean() {
+        if (writeBooleanHelper == NONE)
+            writeBooleanHelper = newLabel();
+
+        callProc(writeBooleanHelper);
+    }
+
+    /**
+     * Emits the runtime helper procedures which have been called, once per program.
+     */
+    private void emitRuntimeHelpers() {
+        if (runtimeHelpersEmitted)
+            return;
+        runtimeHelpersEmitted = true;
+
+        if (writeBooleanHelper != NONE) {
+            int falseLabel = newLabel(), exitLabel = newLabel();
+
+            enterProc(writeBooleanHelper, 1, false);
+            loadWord(MemoryRegion.STACK, paramOffset(0));
+            branchIf(false, falseLabel);
+            writeString(allocStringConstant("True"));
+            jump(exitLabel);
+            assignLabel(falseLabel);
+            writeString(allocStringConstant("False"));
+            exitProc(exitLabel);
+        }
+
+        for (int rank = 2; rank < allocArrayHelpers.length; rank++) {
+            if (allocArrayHelpers[rank] == NONE)
+                continue;
+
+            enterProc(allocArrayHelpers[rank], rank, false);
+            for (int dim = 0; dim < rank; dim++)
+                loadWord(MemoryRegion.STACK, paramOffset(dim));
+            allocArrayInline(rank);
+            exitProc(newLabel());
+        }
+    }
+
     @Override
     public void writeString(int addr) {
         addInstructionToCodeBuffer(sprint);
@@ -418,6 +868,11 @@ public class BackendMJ implements ExtendedBackendBinSM {
         addInstructionToCodeBuffer(bread);
     }
 
+    @Override
+    public void pop() {
+        addInstructionToCodeBuffer(pop);
+    }
+
     @Override
     public void neg() {
         addInstructionToCodeBuffer(neg);
@@ -448,6 +903,16 @@ public class BackendMJ implements ExtendedBackendBinSM {
         addInstructionToCodeBuffer(rem);
     }
 
+    @Override
+    public void shiftLeft() {
+        addInstructionToCodeBuffer(shl);
+    }
+
+    @Override
+    public void shiftRight() {
+        addInstructionToCodeBuffer(shr);
+    }
+
     @Override
     public void and() {
         addInstructionToCodeBuffer(mul);
@@ -479,8 +944,7 @@ public class BackendMJ implements ExtendedBackendBinSM {
 
     @Override
     public void isNotEqual() {
-        isEqual();
-        not();
+        compare(jne);
     }
 
     @Override
@@ -534,16 +998,51 @@ public class BackendMJ implements ExtendedBackendBinSM {
 
     @Override
     public void branchIf(boolean value, String label) {
+        branchIf(value, namedLabel(label));
+    }
+
+    @Override
+    public void branchIf(boolean value, int label) {
         loadConst(boolValue(value));
         addInstructionToCodeBuffer(jeq);
-        addToBackpatchingMap(label, getNextCodeBufferAdress());
-        addPlaceholderBytesToCodeBuffer(2);
+        labels.reference(label, addPlaceholderBytesToCodeBuffer(2), codeBuffer);
+    }
+
+    @Override
+    public void branchIf(Comparison comparison, int label) {
+        addInstructionToCodeBuffer(conditionalJump(comparison));
+        labels.reference(label, addPlaceholderBytesToCodeBuffer(2), codeBuffer);
+    }
+
+    /**
+     * @return the conditional jump instruction for the comparison
+     */
+    private static Instruction conditionalJump(Comparison comparison) {
+        switch (comparison) {
+            case EQ:
+                return jeq;
+            case NE:
+                return jne;
+            case LT:
+                return jlt;
+            case LE:
+                return jle;
+            case GT:
+                return jgt;
+            default:
+            case GE:
+                return jge;
+        }
     }
 
     @Override
     public void jump(String label) {
-        int backPatchingTarget = jmp(null);
-        addToBackpatchingMap(label, backPatchingTarget);
+        jump(namedLabel(label));
+    }
+
+    @Override
+    public void jump(int label) {
+        labels.reference(label, jmp(null), codeBuffer);
     }
 
     /**
@@ -569,8 +1068,74 @@ public class BackendMJ implements ExtendedBackendBinSM {
 
     @Override
     public void callProc(String label) {
+        callProc(namedLabel(label));
+    }
+
+    @Override
+    public void callProc(int label) {
+        InlineCandidate callee = inlineCandidates.get(label);
+        if (callee != null && currentlyDefinedProcedure != null
+                && currentlyDefinedProcedure.calculateFrameSize() + callee.frameSize <= SpillRecord.MAX_FRAME_SIZE) {
+            inline(callee);
+            return;
+        }
+
         addInstructionToCodeBuffer(call);
-        addToBackpatchingMap(label, addPlaceholderBytesToCodeBuffer(2));
+        labels.reference(label, addPlaceholderBytesToCodeBuffer(2), codeBuffer);
+    }
+
+    /**
+     * Emits the body of the callee instead of a call, with its frame words allocated in the current frame.
+     */
+    private void inline(InlineCandidate callee) {
+        ProcedureCode code = callee.code;
+        int base = callee.frameSize > 0 ? allocStack(callee.frameSize) : 0;
+
+        for (int word = callee.nParams - 1; word >= 0; word--)
+            storeWord(MemoryRegion.STACK, base + word);
+        for (int word : callee.clearedLocals) {
+            loadConst(0);
+            storeWord(MemoryRegion.STACK, base + word);
+        }
+
+        int[] targetLabels = new int[code.size()];
+        Arrays.fill(targetLabels, NONE);
+        for (int i = 0; i < code.size(); i++)
+            if (code.instruction(i).isJump() && targetLabels[code.target(i)] == NONE)
+                targetLabels[code.target(i)] = newLabel();
+        int endLabel = newLabel();
+
+        for (int i = 1; i < code.size(); i++) {
+            if (targetLabels[i] != NONE)
+                assignLabel(targetLabels[i]);
+
+            Instruction instruction = code.instruction(i);
+            int word = InlineCandidate.frameWord(instruction, code.operand(i));
+
+            if (instruction == exit) {
+                continue;
+            } else if (instruction == return_) {
+                if (i < code.size() - 1)
+                    jump(endLabel);
+            } else if (word != NONE) {
+                if (InlineCandidate.isStore(instruction))
+                    storeWord(MemoryRegion.STACK, base + word);
+                else
+                    loadWord(MemoryRegion.STACK, base + word);
+            } else if (instruction.isJump()) {
+                addInstructionToCodeBuffer(instruction);
+                labels.reference(targetLabels[code.target(i)], addPlaceholderBytesToCodeBuffer(2), codeBuffer);
+            } else {
+                // calls were resolved when the callee was completed
+                addInstructionToCodeBuffer(instruction);
+                for (int j = 0; j < instruction.operands.length; j++)
+                    addExplicitOperandToCodeBuffer(j == 0 ? code.operand(i) : code.operand2(i), instruction.operands[j]);
+            }
+        }
+
+        assignLabel(endLabel);
+        if (callee.frameSize > 0)
+            freeStack(base, callee.frameSize);
     }
 
     @Override
@@ -0,0 +1,78 @@
+package yapl.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A basic block of the {@link ControlFlowGraph}: a sequence of instructions which is only entered
+ * at its start and only left at its end, by a jump or branch as last instruction or by falling through
+ * to the next block of the layout.
+ */
+public class BasicBlock {
+
+    public final int id;
+
+    /**
+     * labels assigned to the start of the block, the first one is used by jumps to the block
+     */
+    public final List<Integer> labels = new ArrayList<>();
+
+    public final List<IrInstruction> instructions = new ArrayList<>();
+
+    /**
+     * blocks which can be executed directly before and after the block, see {@link ControlFlowGraph#update()}
+     */
+    public final List<BasicBlock> predecessors = new ArrayList<>();
+    public final List<BasicBlock> successors = new ArrayList<>();
+
+    /**
+     * depth of the expression stack at the start of the block, {@link IrInstruction#UNKNOWN} if it is not known
+     */
+    public int stackDepth = IrInstruction.UNKNOWN;
+
+    public BasicBlock(int id) {
+        this.id = id;
+    }
+
+    /**
+     * @return the last instruction, null if the block is empty
+     */
+    public IrInstruction last() {
+        return instructions.isEmpty() ? null : instructions.get(instructions.size() - 1);
+    }
+
+    /**
+     * @return the jump or branch ending the block, null if there is none
+     */
+    public IrInstruction branch() {
+        IrInstruction last = last();
+        return last != null && last.op.isBranch() ? last : null;
+    }
+
+    /**
+     * @return whether execution may continue with the next block of the layout
+     */
+    public boolean fallsThrough() {
+        IrInstruction last = last();
+        return last == null || last.op != IrOp.JUMP;
+    }
+
+    /**
+     * @return depth of the expression stack at the end of the block, UNKNOWN if it is not known
+     */
+    public int stackDepthAtEnd() {
+        int depth = stackDepth;
+        for (IrInstruction instruction : instructions) {
+            if (depth == IrInstruction.UNKNOWN || instruction.pops == IrInstruction.UNKNOWN
+                    || instruction.pushes == IrInstruction.UNKNOWN)
+                return IrInstruction.UNKNOWN;
+            depth += instruction.pushes - instruction.pops;
+        }
+        return depth;
+    }
+
+    @Override
+    public String toString() {
+        return "B" + id;
+    }
+}
@@ -0,0 +1,288 @@
+package yapl.impl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Growable buffer of primitive bytes holding emitted MJ code.
+ * <p>
+ * Operands are written in big endian order as expected by the MJ VM.
+ * Placeholders for operands that are not known yet (e.g. forward jump targets)
+ * are reserved explicitly with {@link #reserve(int)} and filled in later
+ * with one of the patch methods.
+ * <p>
+ * Completed code can be flushed to a file channel with {@link #flush()}, which releases its
+ * memory. Addresses stay the same, flushed bytes are read and patched within the file.
+ */
+public class CodeBuffer {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private byte[] bytes;
+    private int size = 0;
+
+    /**
+     * channel receiving flushed code and the file position of address 0, see {@link #streamTo(FileChannel, long)}
+     */
+    private FileChannel channel;
+    private long channelPosition;
+
+    /**
+     * number of bytes flushed to the channel, which is the address of bytes[0]
+     */
+    private int flushed = 0;
+
+    public CodeBuffer() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public CodeBuffer(int initialCapacity) {
+        bytes = new byte[Math.max(initialCapacity, 16)];
+    }
+
+    /**
+     * @param bytes initial content of the buffer, which is not copied
+     */
+    public CodeBuffer(byte[] bytes) {
+        this.bytes = bytes;
+        size = bytes.length;
+    }
+
+    /**
+     * @return number of bytes in the buffer (including flushed ones), which is also the address of the next emitted byte
+     */
+    public int size() {
+        return flushed + size;
+    }
+
+    /**
+     * Makes {@link #flush()} write the code to the given channel, address 0 at the given file position.
+     */
+    public void streamTo(FileChannel channel, long position) {
+        if (flushed > 0)
+            throw new IllegalStateException("Code has already been flushed.");
+
+        this.channel = channel;
+        this.channelPosition = position;
+    }
+
+    /**
+     * @return whether the code is written to a channel by {@link #flush()}
+     */
+    public boolean isStreaming() {
+        return channel != null;
+    }
+
+    /**
+     * Writes all bytes in the buffer to the channel, they cannot be truncated anymore.
+     * Does nothing if the code is not streamed.
+     */
+    public void flush() {
+        if (channel == null || size == 0)
+            return;
+
+        write(flushed, ByteBuffer.wrap(bytes, 0, size));
+        flushed += size;
+        size = 0;
+    }
+
+    private void write(int position, ByteBuffer buffer) {
+        try {
+            long filePosition = channelPosition + position;
+            while (buffer.hasRemaining())
+                filePosition += channel.write(buffer, filePosition);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private ByteBuffer read(int position, int nBytes) {
+        ByteBuffer buffer = ByteBuffer.allocate(nBytes);
+        try {
+            while (buffer.hasRemaining())
+                if (channel.read(buffer, channelPosition + position + buffer.position()) < 0)
+                    throw new IOException("Unexpected end of file at code address " + position + ".");
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * makes sure there is room for nBytes more bytes
+     */
+    private void ensureCapacity(int nBytes) {
+        if (size + nBytes > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + nBytes));
+    }
+
+    /**
+     * appends a single byte (s8 operand or opcode)
+     */
+    public void put8(int value) {
+        ensureCapacity(1);
+        bytes[size++] = (byte) value;
+    }
+
+    /**
+     * appends a s16 operand
+     */
+    public void put16(int value) {
+        ensureCapacity(2);
+        bytes[size++] = (byte) (value >> 8);
+        bytes[size++] = (byte) value;
+    }
+
+    /**
+     * appends a s32 operand
+     */
+    public void put32(int value) {
+        ensureCapacity(4);
+        bytes[size++] = (byte) (value >> 24);
+        bytes[size++] = (byte) (value >> 16);
+        bytes[size++] = (byte) (value >> 8);
+        bytes[size++] = (byte) value;
+    }
+
+    /**
+     * Appends an operand of the given type.
+     * Adding 0xF0F1F2F3 will result in: 0xF0 0xF1 0xF2 0xF3 for s32,
+     * 0xF2, 0xF3 for s16 and 0xF3 for s8.
+     */
+    public void put(int value, OperandType type) {
+        switch (type) {
+            case s8:
+                put8(value);
+                break;
+            case s16:
+                put16(value);
+                break;
+            default:
+            case s32:
+                put32(value);
+                break;
+        }
+    }
+
+    /**
+     * adds nBytes zero bytes as placeholders (for later backpatching)
+     *
+     * @return the position of the FIRST placeholder byte
+     */
+    public int reserve(int nBytes) {
+        ensureCapacity(nBytes);
+        // the array is zeroed on allocation, but the area may have been used before a truncate() or flush()
+        Arrays.fill(bytes, size, size + nBytes, (byte) 0);
+        size += nBytes;
+        return flushed + size - nBytes;
+    }
+
+    public void patch8(int position, int value) {
+        patch(position, value, 1);
+    }
+
+    public void patch16(int position, int value) {
+        patch(position, value, 2);
+    }
+
+    public void patch32(int position, int value) {
+        patch(position, value, 4);
+    }
+
+    /**
+     * writes the nBytes lowest bytes of value in big endian order
+     */
+    private void patch(int position, int value, int nBytes) {
+        checkPosition(position, nBytes);
+
+        if (position < flushed) {
+            ByteBuffer buffer = ByteBuffer.allocate(4).putInt(value);
+            buffer.position(4 - nBytes);
+            write(position, buffer);
+            return;
+        }
+
+        for (int i = nBytes - 1, index = position - flushed; i >= 0; i--, index++)
+            bytes[index] = (byte) (value >> 8 * i);
+    }
+
+    private void checkPosition(int position, int nBytes) {
+        if (position < 0 || position + nBytes > size())
+            throw new IndexOutOfBoundsException("Cannot patch " + nBytes + " byte(s) at " + position + ", buffer size is " + size());
+        if (position < flushed && position + nBytes > flushed)
+            throw new IllegalStateException("Cannot patch " + nBytes + " byte(s) across the flushed code at " + flushed + ".");
+    }
+
+    /**
+     * @return unsigned value of the byte at the given position
+     */
+    public int get8(int position) {
+        if (position < flushed)
+            return read(position, 1).get() & 0xFF;
+        return bytes[position - flushed] & 0xFF;
+    }
+
+    /**
+     * @return signed s16 operand at the given position
+     */
+    public int get16(int position) {
+        if (position < flushed)
+            return read(position, 2).getShort();
+        int index = position - flushed;
+        return (short) ((bytes[index] << 8) | (bytes[index + 1] & 0xFF));
+    }
+
+    /**
+     * @return s32 operand at the given position
+     */
+    public int get32(int position) {
+        if (position < flushed)
+            return read(position, 4).getInt();
+        int index = position - flushed;
+        return (bytes[index] << 24) | ((bytes[index + 1] & 0xFF) << 16)
+                | ((bytes[index + 2] & 0xFF) << 8) | (bytes[index + 3] & 0xFF);
+    }
+
+    /**
+     * Drops all bytes from the given position on.
+     */
+    public void truncate(int newSize) {
+        if (newSize < flushed || newSize > size())
+            throw new IndexOutOfBoundsException("Cannot truncate buffer of size " + size() + " to " + newSize
+                    + (flushed > 0 ? ", " + flushed + " bytes are flushed" : ""));
+        size = newSize - flushed;
+    }
+
+    /**
+     * @return the backing array; only the first {@link #size()} bytes are valid. Not available for streamed code.
+     */
+    public byte[] array() {
+        if (flushed > 0)
+            throw new IllegalStateException("Code has been flushed.");
+        return bytes;
+    }
+
+    /**
+     * @return a copy of the buffer content, including flushed bytes
+     */
+    public byte[] toByteArray() {
+        byte[] result = new byte[size()];
+        if (flushed > 0)
+            read(0, flushed).get(result, 0, flushed);
+        System.arraycopy(bytes, 0, result, flushed, size);
+        return result;
+    }
+
+    /**
+     * writes the buffer content with a single bulk write
+     */
+    public void writeTo(OutputStream outStream) throws IOException {
+        outStream.write(array(), 0, size);
+    }
+}
@@ -4,8 +4,10 @@ import yapl.compiler.Token;
 import yapl.interfaces.*;
 import yapl.lib.*;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
 
 import static yapl.compiler.YaplConstants.*;
 import static yapl.impl.ErrorType.*;
@@ -17,29 +19,50 @@ import static yapl.interfaces.MemoryRegion.*;
 public class CodeGenBinSM implements CodeGen {
     private final ExtendedBackendBinSM backend;
 
-    private int labelCounter = 0;
-
-    private final Map<Attrib, Integer> globalConstantAssignments = new HashMap<>();
+    /**
+     * epilog label of the procedure currently being generated
+     */
+    private int procedureEndLabel = -1;
 
     private int newlineOffset = -1;
 
+    /**
+     * stack offsets of the local variables of each open block, innermost block last
+     */
+    private final Deque<List<Integer>> blockVariables = new ArrayDeque<>();
+
+    /**
+     * number of open blocks in the body of the current procedure: 1 for procedures, whose body is a block,
+     * 0 for the main procedure
+     */
+    private int procedureBodyDepth = 0;
+
     public CodeGenBinSM(ExtendedBackendBinSM backend) {
         this.backend = backend;
     }
 
     @Override
-    public String newLabel() {
-        return "label " + labelCounter++;
+    public int newLabel() {
+        return backend.newLabel();
     }
 
     @Override
-    public void assignLabel(String label) {
+    public void assignLabel(int label) {
         backend.assignLabel(label);
     }
 
     @Override
     public byte loadValue(Attrib attr) throws YaplException {
         switch (attr.getKind()) {
+            case Attrib.RegValue:
+            case Attrib.RegAddress:
+                // already on the expression stack
+                return 0;
+
+            case Attrib.Condition:
+                loadCondition((YaplAttrib) attr);
+                break;
+
             case Attrib.Constant:
                 if (!(attr instanceof YaplAttrib))
                     throw new IllegalStateException("Need value for constant load.");
@@ -66,6 +89,75 @@ public class CodeGenBinSM implements CodeGen {
         return 0; // return register number not needed for stack machine
     }
 
+    /**
+     * Evaluates a (short-circuit) condition to a boolean value.
+     */
+    private void loadCondition(YaplAttrib condition) {
+        if (condition.getTrueLabel() < 0 && condition.getFalseLabel() < 0) {
+            // without a comparison, the value is already on the stack
+            if (condition.getComparison() != null)
+                loadComparison(condition.getComparison());
+            return;
+        }
+
+        int endLabel = newLabel();
+
+        if (condition.getComparison() == null) {
+            // the value of the last operand is the result, unless a short-circuit jump was taken
+            backend.jump(endLabel);
+            if (condition.getTrueLabel() >= 0) {
+                assignLabel(condition.getTrueLabel());
+                backend.loadConst(backend.boolValue(true));
+                if (condition.getFalseLabel() >= 0)
+                    backend.jump(endLabel);
+            }
+            if (condition.getFalseLabel() >= 0) {
+                assignLabel(condition.getFalseLabel());
+                backend.loadConst(backend.boolValue(false));
+            }
+            assignLabel(endLabel);
+            return;
+        }
+
+        int falseLabel = condition.getFalseLabel() >= 0 ? condition.getFalseLabel() : newLabel();
+
+        branchOnTest(condition, false, falseLabel);
+        if (condition.getTrueLabel() >= 0)
+            assignLabel(condition.getTrueLabel());
+        backend.loadConst(backend.boolValue(true));
+        backend.jump(endLabel);
+
+        assignLabel(falseLabel);
+        backend.loadConst(backend.boolValue(false));
+        assignLabel(endLabel);
+    }
+
+    /**
+     * Evaluates the comparison of the two top-most operands to a boolean value.
+     */
+    private void loadComparison(Comparison comparison) {
+        switch (comparison) {
+            case EQ:
+                backend.isEqual();
+                break;
+            case NE:
+                backend.isNotEqual();
+                break;
+            case LT:
+                backend.isLess();
+                break;
+            case LE:
+                backend.isLessOrEqual();
+                break;
+            case GT:
+                backend.isGreater();
+                break;
+            case GE:
+                backend.isGreaterOrEqual();
+                break;
+        }
+    }
+
     @Override
     public byte loadAddress(Attrib attr) throws YaplException {
         // as of now, this would have no difference in runtime effect to loadValue()
@@ -79,17 +171,22 @@ public class CodeGenBinSM implements CodeGen {
 
     @Override
     public void allocVariable(Symbol sym) throws YaplException {
+        // constants are no variables, their values are used as immediate operands
         switch (sym.getKind()) {
             case Symbol.Variable:
-            case Symbol.Constant:
                 int offset;
 
                 if (sym.isGlobal())
-                    // global variables and constants are stored in STATIC
+                    // global variables are stored in STATIC
                     offset = backend.allocStaticData(1);
-                else
-                    // local variables and constants are stored on the STACK
-                    offset = backend.allocStack(1);
+                else {
+                    // local variables are stored on the STACK until the end of their block and start with 0;
+                    // the body of a procedure is entered once per frame, which is cleared by enter, nested
+                    // blocks are cleared on every entry, e.g. within a loop
+                    offset = blockVariables.size() > procedureBodyDepth ? backend.allocStackCleared(1) : backend.allocStack(1);
+                    if (!blockVariables.isEmpty())
+                        blockVariables.getLast().add(offset);
+                }
 
                 sym.setOffset(offset);
                 break;
@@ -102,160 +199,20 @@ public class CodeGenBinSM implements CodeGen {
             record.getField(i).setOffset(i);
     }
 
-    // using "#" as a suffix avoids collisions with local variables as "#" is no valid
-    // char in äh YAPL identifiers
-    private final String suffixToAvoidVariableCollisions = "#";
-
-    private final int maxArrayDim = 2;
-    private final String arrayAddressSymbol = "_array_dim_buffer" + suffixToAvoidVariableCollisions;
-    private final String resultArrayAddressSymbol = "_array_add_result" + suffixToAvoidVariableCollisions;
-    private final String arrayDimIteratorSymbol = "_array_dim_iterator" + suffixToAvoidVariableCollisions;
-
-    private YaplSymbol arrayDimensionArrayAddress = null;
-    private int currentDim = 0;
-    private int currentArray = 0;
-
-    public void prepareForAnotherArrayDimension() throws YaplException {
-        if (arrayDimensionArrayAddress == null) {
-            // if there is no array allocated at the moment, start a new dim-tracking array
-            arrayDimensionArrayAddress = new YaplSymbol(arrayAddressSymbol, SymbolKind.Variable);
-            this.allocVariable(arrayDimensionArrayAddress);
-
-            backend.loadConst(maxArrayDim);
-            backend.allocArray();
-
-            backend.storeWord(STACK, arrayDimensionArrayAddress.getOffset());
-        }
-
-        backend.loadWord(STACK, arrayDimensionArrayAddress.getOffset());
-        backend.loadConst(currentDim++);
-    }
-
     @Override
     public void storeArrayDim(int dim, Attrib length) throws YaplException {
-        backend.storeArrayElement();
-    }
-
-    public static void main(String[] args) {
-        int[][][] arr = new int[2][3][4];
-
-        for (int i = 0; i < 2; i++) {
-
-            int[][] arr1 = new int[3][4];
-
-
-            for (int j = 0; j < 3; j++) {
-                int[] arr2 = new int[4];
-
-                arr1[j] = arr2;
-            }
-
-            arr[i] = arr1;
-        }
+        loadValue(length);
+        backend.storeArrayDim(dim);
     }
 
-    /**
-     * This implementation assumes that the array lengths (nr == arrayTime.dim) is already on the stack.
-     *
-     * @param arrayType array type. arrayType.dim e [1;n]
-     * @return
-     * @throws YaplException
-     */
     @Override
     public Attrib allocArray(ArrayType arrayType) throws YaplException {
-
-        // int[..] result
-        YaplSymbol resultAddresses = new YaplSymbol(resultArrayAddressSymbol, SymbolKind.Variable);
-        this.allocVariable(resultAddresses);
-
-        //////
-        // result = new int[|dim|]
-        //////
-        backend.loadConst(currentDim);
         backend.allocArray();
-        backend.storeWord(STACK, resultAddresses.getOffset());
-
-        //////
-        // result[0] = a1
-        //////
-        backend.loadWord(STACK, resultAddresses.getOffset());
-        backend.loadConst(0);
-        // load(dim0)
-        loadArrayValueAtIndex(arrayDimensionArrayAddress, 0);
-        // int[dim0] a1 = new int[dim0]
-        backend.allocArray();
-        //
-        backend.storeArrayElement();
-
-        if (currentDim > 1) {
-            String startLabel = "_array_for_start_" + suffixToAvoidVariableCollisions + currentArray,
-                    endLabel = "_array_for_end_" + suffixToAvoidVariableCollisions + currentArray;
-
-            // int a = 0;
-            YaplSymbol arrayDimIterator = new YaplSymbol(arrayDimIteratorSymbol, SymbolKind.Variable);
-            this.allocVariable(arrayDimIterator);
-            backend.loadConst(0);
-            backend.storeWord(STACK, arrayDimIterator.getOffset());
-
-            // for(int a=0; a<dim0; a++)
-            // this for is used to calculate how many sub-arrays are needed
-            backend.assignLabel(startLabel);
-
-            // if(a == dims[0]) break;
-            loadArrayValueAtIndex(arrayDimensionArrayAddress, 0);
-            //
-            backend.loadWord(STACK, arrayDimIterator.getOffset());
-            //
-            backend.isNotEqual();
-            //
-            backend.branchIf(false, endLabel);
-
-            // loop body
-            {
-                // result[0][a] = new int[dim1]
-                // result[0]
-                loadArrayValueAtIndex(resultAddresses, 0);
-                // a
-                backend.loadWord(STACK, arrayDimIterator.getOffset());
-                // load dim1
-                loadArrayValueAtIndex(arrayDimensionArrayAddress, 1);
-                // int[] = new int[dim1]
-                backend.allocArray();
-                //
-                backend.storeArrayElement();
-            }
-
-            // a++
-            backend.loadWord(STACK, arrayDimIterator.getOffset());
-            backend.loadConst(1);
-            backend.add();
-            backend.storeWord(STACK, arrayDimIterator.getOffset());
-
-            // goto for_start
-            backend.jump(startLabel);
-            backend.assignLabel(endLabel);
-        }
-
-
-        // reset array allocation and raise array-label-index
-        arrayDimensionArrayAddress = null;
-        currentDim = 0;
-
-        currentArray++;
-
-        // load result[0]
-        loadArrayValueAtIndex(resultAddresses, 0);
 
         // address is located on exp stack
         return new YaplAttrib(Attrib.RegAddress, arrayType);
     }
 
-    private void loadArrayValueAtIndex(YaplSymbol array, int index) {
-        backend.loadWord(STACK, array.getOffset());
-        backend.loadConst(index);
-        backend.loadArrayElement();
-    }
-
     @Override
     public Attrib allocRecord(RecordType recordType) throws YaplException {
         backend.allocHeap(recordType.nFields());
@@ -269,7 +226,8 @@ public class CodeGenBinSM implements CodeGen {
 
     @Override
     public void arrayOffset(Attrib arr, Attrib index) throws YaplException {
-        // no code since the array load and store ops consume address AND index
+        loadValue(index);
+        // no further code since the array load and store ops consume address AND index
         arr.setKind(Attrib.ArrayElement);
     }
 
@@ -297,14 +255,7 @@ public class CodeGenBinSM implements CodeGen {
         if (!lvalue.getType().equals(expr.getType()))
             throw new IllegalStateException("Assignment type mismatch");
 
-        // special treatment for global constants, since they need code to assign values,
-        // but code is only executed after the startPC
-        // solution: move value assignment to start of main procedure
-        // also, there can be no global constants after the startPC
-        if (lvalue.isGlobal() && lvalue.isConstant()) {
-            globalConstantAssignments.put(lvalue, ((YaplAttrib) expr).getValue());
-            return;
-        }
+        loadValue(expr);
 
         switch (lvalue.getKind()) {
             case Attrib.MemoryOperand:
@@ -337,6 +288,8 @@ public class CodeGenBinSM implements CodeGen {
                 return x;
 
             case SUB:
+                if (isConstant(x))
+                    return new YaplAttrib(-constantValue(x));
                 backend.neg();
                 break;
 
@@ -352,9 +305,150 @@ public class CodeGenBinSM implements CodeGen {
         if (!x.getType().equals(y.getType()))
             throw new YaplException(IllegalOp2Type, op, op);
 
-        boolean intOp = true;
+        if (op.kind == AND || op.kind == OR) {
+            if (!x.getType().isBool())
+                throw new YaplException(IllegalOp2Type, op, op);
 
-        switch (op.kind) {
+            return combineShortCircuit((YaplAttrib) x, op.kind == AND, y);
+        }
+
+        if (!x.getType().isInt())
+            throw new YaplException(IllegalOp2Type, op, op);
+
+        // constants have not been loaded, x is on the stack otherwise
+        if (isConstant(x) && isConstant(y)) {
+            Integer result = fold(op.kind, constantValue(x), constantValue(y));
+            if (result != null)
+                return new YaplAttrib(result);
+
+            // division by zero is left to the runtime
+            loadValue(x);
+        } else if (isConstant(y)) {
+            Attrib result = applyIdentity(x, op.kind, constantValue(y));
+            if (result != null)
+                return result;
+        } else if (isConstant(x)) {
+            return constantLeftOperand(constantValue(x), op.kind, y);
+        }
+
+        loadValue(y);
+        arithmetic(op.kind);
+        return x;
+    }
+
+    private static boolean isConstant(Attrib attr) {
+        return attr.getKind() == Attrib.Constant;
+    }
+
+    private static int constantValue(Attrib attr) {
+        return ((YaplAttrib) attr).getValue();
+    }
+
+    private static boolean constantBoolValue(Attrib attr) {
+        return ((YaplAttrib) attr).getBoolValue();
+    }
+
+    /**
+     * @return x op y, null if it cannot be computed at compile time (division by zero)
+     */
+    private static Integer fold(int op, int x, int y) throws YaplException {
+        switch (op) {
+            case ADD:
+                return x + y;
+            case SUB:
+                return x - y;
+            case MUL:
+                return x * y;
+            case DIV:
+                return y == 0 ? null : x / y;
+            case MOD:
+                return y == 0 ? null : x % y;
+            default:
+                throw new YaplException(Internal, -1, -1, "Illegal Op2 operation.");
+        }
+    }
+
+    /**
+     * Simplifies x op y for the operand x on the stack and the constant y.
+     *
+     * @return the result, null if there is no simplification
+     */
+    private Attrib applyIdentity(Attrib x, int op, int y) {
+        switch (op) {
+            case ADD:
+            case SUB:
+                return y == 0 ? x : null;
+
+            case MUL:
+                if (y == 1)
+                    return x;
+                if (y == 0)
+                    return discardOperand(0);
+                return null;
+
+            case DIV:
+                return y == 1 ? x : null;
+
+            case MOD:
+                return y == 1 ? discardOperand(0) : null;
+
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Replaces the operand on the stack by a constant; the operand is still evaluated for its side effects.
+     */
+    private Attrib discardOperand(int value) {
+        backend.pop();
+        return new YaplAttrib(value);
+    }
+
+    /**
+     * Generates x op y for the constant x, which has not been loaded before y.
+     */
+    private Attrib constantLeftOperand(int x, int op, Attrib y) throws YaplException {
+        loadValue(y);
+
+        switch (op) {
+            case ADD:
+            case MUL:
+                // commutative
+                if (x == (op == ADD ? 0 : 1))
+                    return y;
+                if (op == MUL && x == 0)
+                    return discardOperand(0);
+
+                backend.loadConst(x);
+                arithmetic(op);
+                break;
+
+            case SUB:
+                // x - y = -y + x
+                backend.neg();
+                if (x != 0) {
+                    backend.loadConst(x);
+                    backend.add();
+                }
+                break;
+
+            default:
+                // y is moved above x through a temporary word
+                int temporary = backend.allocStack(1);
+                backend.storeWord(STACK, temporary);
+                backend.loadConst(x);
+                backend.loadWord(STACK, temporary);
+                backend.freeStack(temporary, 1);
+                arithmetic(op);
+                break;
+        }
+
+        return new YaplAttrib(Type.INT);
+    }
+
+    private void arithmetic(int op) throws YaplException {
+        switch (op) {
             case ADD:
                 backend.add();
                 break;
@@ -375,26 +469,113 @@ public class CodeGenBinSM implements CodeGen {
                 backend.mod();
                 break;
 
-            case AND:
-                backend.and();
-                intOp = false;
-                break;
-
-            case OR:
-                backend.or();
-                intOp = false;
-                break;
-
             default:
                 throw new YaplException(Internal, -1, -1, "Illegal Op2 operation.");
         }
+    }
 
-        if (intOp && !x.getType().isInt() || !intOp && !x.getType().isBool())
-            throw new YaplException(IllegalOp2Type, op, op);
+    /**
+     * Jumps to the result of And/Or if the left operand already decides it:
+     * And is false if x is false, Or is true if x is true.
+     * Otherwise, evaluation continues with the right operand.
+     */
+    @Override
+    public Attrib shortCircuit(Attrib x, Token op) throws YaplException {
+        if (!x.getType().isBool())
+            // type error is reported by op2
+            return x;
 
-        return x;
+        boolean and = op.kind == AND;
+        if (isConstant(x)) {
+            // y is never evaluated if x already decides the result
+            if (constantBoolValue(x) != and)
+                backend.beginDeadCode();
+            return x;
+        }
+
+        YaplAttrib condition = asCondition(x);
+
+        int exitLabel = and ? condition.getFalseLabel() : condition.getTrueLabel();
+        if (exitLabel < 0)
+            exitLabel = newLabel();
+        branchOnTest(condition, !and, exitLabel);
+
+        int continueLabel = and ? condition.getTrueLabel() : condition.getFalseLabel();
+        if (continueLabel >= 0)
+            assignLabel(continueLabel);
+
+        return and ? new YaplAttrib(null, -1, exitLabel) : new YaplAttrib(null, exitLabel, -1);
+    }
+
+    /**
+     * @param x the left operand as returned by {@link #shortCircuit(Attrib, Token)}
+     * @return the condition x And/Or y, which is decided by y unless x jumped to the result
+     */
+    private Attrib combineShortCircuit(YaplAttrib x, boolean and, Attrib y) throws YaplException {
+        if (isConstant(x)) {
+            if (constantBoolValue(x) != and) {
+                backend.endDeadCode();
+                return x;
+            }
+            // True And y, False Or y
+            return y;
+        }
+
+        if (isConstant(y))
+            loadValue(y);
+
+        YaplAttrib condition = asCondition(y);
+        int trueLabel = condition.getTrueLabel(), falseLabel = condition.getFalseLabel();
+
+        if (and)
+            falseLabel = mergeLabels(x.getFalseLabel(), falseLabel);
+        else
+            trueLabel = mergeLabels(x.getTrueLabel(), trueLabel);
+
+        return new YaplAttrib(condition.getComparison(), trueLabel, falseLabel);
+    }
+
+    /**
+     * @return the label both labels now refer to, -1 if both are -1
+     */
+    private int mergeLabels(int label, int other) {
+        if (other < 0)
+            return label;
+        if (label < 0)
+            return other;
+
+        backend.mergeLabels(other, label);
+        return label;
+    }
+
+    /**
+     * @param attr a condition or a boolean value on the stack
+     */
+    private YaplAttrib asCondition(Attrib attr) {
+        if (attr.getKind() == Attrib.Condition)
+            return (YaplAttrib) attr;
+
+        return new YaplAttrib((Comparison) null);
+    }
+
+    /**
+     * Emits a jump to the label if the comparison (or boolean value) of the condition has the given value.
+     * Jumps of short-circuit conditions are not affected.
+     */
+    private void branchOnTest(YaplAttrib condition, boolean value, int label) {
+        Comparison comparison = condition.getComparison();
+
+        if (comparison == null)
+            backend.branchIf(value, label);
+        else
+            backend.branchIf(value ? comparison : comparison.negate(), label);
     }
 
+    /**
+     * The comparison is not evaluated here, but returned as {@link Attrib#Condition},
+     * so it can be fused with a following conditional branch.
+     * Comparisons of two constants are folded to a constant.
+     */
     @Override
     public Attrib relOp(Attrib x, Token op, Attrib y) throws YaplException {
         if (!(x.getType().isInt() && y.getType().isInt()))
@@ -402,29 +583,43 @@ public class CodeGenBinSM implements CodeGen {
 
         switch (op.kind) {
             case LT:
-                backend.isLess();
-                break;
+                return compare(x, Comparison.LT, y);
 
             case LE:
-                backend.isLessOrEqual();
-                break;
+                return compare(x, Comparison.LE, y);
 
             case GE:
-                backend.isGreaterOrEqual();
-                break;
+                return compare(x, Comparison.GE, y);
 
             case GT:
-                backend.isGreater();
-                break;
+                return compare(x, Comparison.GT, y);
 
             default:
                 throw new YaplException(Internal, -1, -1, "Illegal RelOp operation.");
         }
+    }
 
-        x.setType(Type.BOOL);
-        return x;
+    /**
+     * @return the comparison of x and y, folded if both are constants
+     */
+    private Attrib compare(Attrib x, Comparison comparison, Attrib y) throws YaplException {
+        if (isConstant(x) && isConstant(y))
+            return new YaplAttrib(comparison.evaluate(constantValue(x), constantValue(y)));
+
+        loadValue(y);
+
+        if (isConstant(x)) {
+            // x has not been loaded before y, so the operands are compared the other way round
+            loadValue(x);
+            comparison = comparison.swap();
+        }
+
+        return new YaplAttrib(comparison);
     }
 
+    /**
+     * @see #relOp(Attrib, Token, Attrib)
+     */
     @Override
     public Attrib equalOp(Attrib x, Token op, Attrib y) throws YaplException {
         Type xType = x.getType(), yType = y.getType();
@@ -434,26 +629,21 @@ public class CodeGenBinSM implements CodeGen {
 
         switch (op.kind) {
             case EQ:
-                backend.isEqual();
-                break;
+                return compare(x, Comparison.EQ, y);
 
             case NE:
-                backend.isNotEqual();
-                break;
+                return compare(x, Comparison.NE, y);
 
             default:
                 throw new YaplException(Internal, -1, -1, "Illegal EqualOp operation.");
         }
-
-        x.setType(Type.BOOL);
-        return x;
     }
 
     @Override
     public void enterProc(Symbol proc) throws YaplException {
         boolean isMain = proc == null || proc.getKind() == Symbol.Program;
         int nParams = 0;
-        String label;
+        int label;
 
         if (!isMain) {
             // load nParams
@@ -462,27 +652,30 @@ public class CodeGenBinSM implements CodeGen {
                 throw new YaplException(Internal, -1, -1, "Procedure symbol type is not procedure.");
 
             nParams = ((ProcedureType) type).getParams().size();
-            label = Procedure.getLabel(proc, false);
+            label = procedureLabel(proc);
 
         } else {
             label = newLabel();
         }
 
         backend.enterProc(label, nParams, isMain);
+        procedureEndLabel = newLabel();
+        procedureBodyDepth = isMain ? 0 : 1;
+    }
 
-        // insert global constant assignments here
-        if (isMain) {
-            for (var decl : globalConstantAssignments.entrySet()) {
-                // globalConstantAssignments maps: <Attrib representing a const var> to <integer value of the const var>
-                backend.loadConst(decl.getValue());
-                backend.storeWord(STATIC, decl.getKey().getOffset());
-            }
-        }
+    /**
+     * @return entry label of the procedure, created on first use
+     */
+    private int procedureLabel(Symbol proc) {
+        YaplSymbol symbol = (YaplSymbol) proc;
+        if (symbol.getLabel() < 0)
+            symbol.setLabel(newLabel());
+        return symbol.getLabel();
     }
 
     @Override
     public void exitProc(Symbol proc) throws YaplException {
-        backend.exitProc(Procedure.getLabel(proc, true));
+        backend.exitProc(procedureEndLabel);
     }
 
     @Override
@@ -490,7 +683,10 @@ public class CodeGenBinSM implements CodeGen {
         // if this is called for the main PROCEDURE, nothing changes.
 
         // return value will be pushed on stack immediately after encountered in grammar
-        backend.jump(Procedure.getLabel(proc, true));
+        if (returnVal != null)
+            loadValue(returnVal);
+
+        backend.jump(procedureEndLabel);
     }
 
     @Override
@@ -508,7 +704,7 @@ public class CodeGenBinSM implements CodeGen {
          * This is probably fine, but must not be forgotten.
          */
 
-        backend.callProc(Procedure.getLabel(proc, false));
+        backend.callProc(procedureLabel(proc));
 
         return new YaplAttrib(((ProcedureType) proc.getType()).getReturnType());
     }
@@ -520,18 +716,12 @@ public class CodeGenBinSM implements CodeGen {
                 break;
 
             case writebool:
-                String elseLabel = newLabel(), endIfLabel = newLabel();
-
-                // if
-                branchIfFalse(args[0], elseLabel);
-                // then
-                writeStringNoQuotes("True");
-                jump(endIfLabel);
-                // else
-                assignLabel(elseLabel);
-                writeStringNoQuotes("False");
-                // endif
-                assignLabel(endIfLabel);
+                if (isConstant(args[0])) {
+                    writeStringNoQuotes(constantBoolValue(args[0]) ? "True" : "False");
+                } else {
+                    loadValue(args[0]);
+                    backend.writeBoolean();
+                }
                 break;
 
             case writeln:
@@ -566,12 +756,51 @@ public class CodeGenBinSM implements CodeGen {
     }
 
     @Override
-    public void branchIfFalse(Attrib condition, String label) throws YaplException {
-        backend.branchIf(false, label);
+    public void branchIfFalse(Attrib condition, int label) throws YaplException {
+        if (isConstant(condition)) {
+            if (!constantBoolValue(condition))
+                backend.jump(label);
+            return;
+        }
+
+        YaplAttrib cond = asCondition(condition);
+
+        // comparisons result in a single conditional jump on the negated comparison
+        branchOnTest(cond, false, label);
+
+        // short-circuit jumps go to the target directly
+        if (cond.getFalseLabel() >= 0)
+            backend.mergeLabels(cond.getFalseLabel(), label);
+        if (cond.getTrueLabel() >= 0)
+            assignLabel(cond.getTrueLabel());
     }
 
     @Override
-    public void jump(String label) {
+    public void jump(int label) {
         backend.jump(label);
     }
+
+    @Override
+    public void enterBlock() {
+        blockVariables.addLast(new ArrayList<>());
+    }
+
+    /**
+     * The words of the local variables of the block are reused by later blocks.
+     */
+    @Override
+    public void exitBlock() {
+        for (int offset : blockVariables.removeLast())
+            backend.freeStack(offset, 1);
+    }
+
+    @Override
+    public void beginDeadCode() {
+        backend.beginDeadCode();
+    }
+
+    @Override
+    public void endDeadCode() {
+        backend.endDeadCode();
+    }
 }
@@ -0,0 +1,28 @@
+package yapl.impl;
+
+import yapl.compiler.Token;
+import yapl.lib.YaplException;
+
+/**
+ * Thrown by the backend if a valid program exceeds a limit of the MJ machine, like the size of the code
+ * or the number of words of a frame. The backend interfaces do not declare {@link YaplException}, so the
+ * compiler converts it to one.
+ */
+public class CodeLimitException extends RuntimeException {
+
+    public final ErrorType errorType;
+    private final Object[] args;
+
+    public CodeLimitException(ErrorType errorType, Object... args) {
+        super(String.format(errorType.message, args));
+        this.errorType = errorType;
+        this.args = args;
+    }
+
+    /**
+     * @return the error at the given token of the source program
+     */
+    public YaplException toYaplException(Token token) {
+        return new YaplException(errorType, token, args);
+    }
+}
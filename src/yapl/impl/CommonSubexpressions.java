@@ -0,0 +1,234 @@
+package yapl.impl;
+
+import yapl.interfaces.MemoryRegion;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Value numbering within basic blocks: a value computed again, typically the array or record
+ * of an access chain like <code>a[i][j]</code> or <code>b.c.d</code>, is stored in a temporary word
+ * of the frame after its first computation and loaded from there instead of being recomputed.
+ * <p>
+ * Loads are numbered by the version of what they read: the version of a frame or static word
+ * changes when it is stored, heap words and array elements change with every heap store, and
+ * calls change all static and heap data. As there is no instruction duplicating a value, caching
+ * costs a store and a load; a value is only cached if this is cheaper than computing it again,
+ * where heap accesses, which check their operands, count twice.
+ */
+public class CommonSubexpressions implements IrPass {
+
+    /**
+     * instructions [start, end] of a block computing a value, start is -1 if the value is not
+     * computed by a contiguous range of the block
+     */
+    private static class Value {
+        final int number, start, end;
+
+        Value(int number, int start, int end) {
+            this.number = number;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    /**
+     * value numbers by key of the computation, and the next number for other values
+     */
+    private final Map<String, Integer> numbers = new HashMap<>();
+    private int nextNumber;
+
+    /**
+     * versions of what loads read, see {@link #key(IrInstruction, List)}
+     */
+    private final Map<Integer, Integer> wordVersions = new HashMap<>(), staticVersions = new HashMap<>();
+    private int heapVersion, callVersion;
+
+    @Override
+    public String name() {
+        return "cse";
+    }
+
+    @Override
+    public void run(ControlFlowGraph graph) {
+        // temporaries only hold values within a block, so blocks share them
+        List<Integer> temporaries = new ArrayList<>();
+
+        for (BasicBlock block : graph.blocks) {
+            if (block.stackDepth == IrInstruction.UNKNOWN)
+                continue;
+
+            int used = 0;
+            List<Value> repeated;
+            while ((repeated = mostProfitable(block)) != null) {
+                if (used == temporaries.size()) {
+                    if (!graph.hasRoomForTemporary())
+                        break;
+                    temporaries.add(graph.newTemporary());
+
+                    // the temporary is allocated at the start of the entry block
+                    if (block == graph.entry())
+                        repeated = mostProfitable(block);
+                }
+                int temporary = temporaries.get(used++);
+
+                for (int i = repeated.size() - 1; i > 0; i--) {
+                    List<IrInstruction> computation = block.instructions.subList(repeated.get(i).start, repeated.get(i).end + 1);
+                    computation.clear();
+                    computation.add(IrInstruction.loadWord(MemoryRegion.STACK, temporary));
+                }
+
+                int end = repeated.get(0).end;
+                block.instructions.add(end + 1, IrInstruction.storeWord(MemoryRegion.STACK, temporary));
+                block.instructions.add(end + 2, IrInstruction.loadWord(MemoryRegion.STACK, temporary));
+            }
+        }
+    }
+
+    /**
+     * @return the computations of the value whose caching saves most, in order, null if no caching pays
+     */
+    private List<Value> mostProfitable(BasicBlock block) {
+        Map<Integer, List<Value>> computations = new HashMap<>();
+        List<Value> order = new ArrayList<>();
+
+        numbers.clear();
+        wordVersions.clear();
+        staticVersions.clear();
+        nextNumber = heapVersion = callVersion = 0;
+
+        List<Value> stack = new ArrayList<>();
+        for (int i = 0; i < block.stackDepth; i++)
+            stack.add(new Value(nextNumber++, -1, -1));
+
+        List<IrInstruction> instructions = block.instructions;
+        for (int i = 0; i < instructions.size(); i++) {
+            IrInstruction instruction = instructions.get(i);
+            if (instruction.pops == IrInstruction.UNKNOWN || instruction.pushes == IrInstruction.UNKNOWN)
+                break;
+
+            List<Value> operands = new ArrayList<>(stack.subList(stack.size() - instruction.pops, stack.size()));
+            stack.subList(stack.size() - instruction.pops, stack.size()).clear();
+
+            if (instruction.pushes == 1) {
+                String key = key(instruction, operands);
+                int number = key != null ? numbers.computeIfAbsent(key, k -> nextNumber++) : nextNumber++;
+
+                int next = i;
+                for (int k = operands.size() - 1; k >= 0 && next >= 0; k--)
+                    next = operands.get(k).end == next - 1 ? operands.get(k).start : -1;
+
+                Value value = new Value(number, next, i);
+                stack.add(value);
+                if (key != null && next >= 0)
+                    computations.computeIfAbsent(number, n -> new ArrayList<>()).add(value);
+                if (key != null && next >= 0 && computations.get(number).size() == 2)
+                    order.add(value);
+            }
+
+            invalidate(instruction);
+        }
+
+        List<Value> best = null;
+        int bestSaving = 0;
+        for (Value value : order) {
+            List<Value> repeated = computations.get(value.number);
+            int cost = 0;
+            for (int i = value.start; i <= value.end; i++)
+                cost += cost(instructions.get(i));
+
+            // each repetition is replaced by a load, the first computation is followed by a store and a load
+            int saving = (repeated.size() - 1) * (cost - 1) - 2;
+            if (saving > bestSaving) {
+                best = repeated;
+                bestSaving = saving;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the key of the value computed by the instruction, null if its values are never equal
+     */
+    private String key(IrInstruction instruction, List<Value> operands) {
+        StringBuilder key = new StringBuilder(instruction.toString());
+        switch (instruction.op) {
+            case LOAD_WORD:
+                if (instruction.region == MemoryRegion.STACK)
+                    key.append(" v").append(wordVersions.getOrDefault(instruction.operand, 0));
+                else if (instruction.region == MemoryRegion.STATIC)
+                    key.append(" v").append(staticVersions.getOrDefault(instruction.operand, 0)).append('.').append(callVersion);
+                else
+                    key.append(" v").append(heapVersion);
+                break;
+            case LOAD_ARRAY_ELEMENT:
+                key.append(" v").append(heapVersion);
+                break;
+            case ADD:
+            case MUL:
+            case AND:
+            case OR:
+            case IS_EQUAL:
+            case IS_NOT_EQUAL:
+                // commutative operations
+                if (operands.get(0).number > operands.get(1).number)
+                    operands = List.of(operands.get(1), operands.get(0));
+                break;
+            case ARRAY_LENGTH:
+            case DIV:
+            case MOD:
+                break;
+            default:
+                if (!instruction.op.isPure())
+                    return null;
+        }
+
+        for (Value operand : operands)
+            key.append(" #").append(operand.number);
+        return key.toString();
+    }
+
+    /**
+     * Changes the versions of what the instruction stores.
+     */
+    private void invalidate(IrInstruction instruction) {
+        switch (instruction.op) {
+            case STORE_WORD:
+                if (instruction.region == MemoryRegion.STACK)
+                    wordVersions.merge(instruction.operand, 1, Integer::sum);
+                else if (instruction.region == MemoryRegion.STATIC)
+                    staticVersions.merge(instruction.operand, 1, Integer::sum);
+                else
+                    heapVersion++;
+                break;
+            case STORE_ARRAY_ELEMENT:
+                heapVersion++;
+                break;
+            case CALL:
+                heapVersion++;
+                callVersion++;
+                break;
+            case ALLOC_STACK:
+            case FREE_STACK:
+                for (int word = instruction.operand; word < instruction.operand + instruction.words; word++)
+                    wordVersions.merge(word, 1, Integer::sum);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static int cost(IrInstruction instruction) {
+        switch (instruction.op) {
+            case LOAD_WORD:
+                return instruction.region == MemoryRegion.HEAP ? 2 : 1;
+            case LOAD_ARRAY_ELEMENT:
+            case ARRAY_LENGTH:
+                return 2;
+            default:
+                return 1;
+        }
+    }
+}
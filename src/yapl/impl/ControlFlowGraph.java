@@ -0,0 +1,383 @@
+package yapl.impl;
+
+import yapl.interfaces.ExtendedBackendBinSM;
+import yapl.interfaces.MemoryRegion;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntSupplier;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The code of a single procedure as basic blocks, in the order of their layout.
+ * <p>
+ * The first block is an empty entry block, which is never the target of a jump, the last one
+ * is the empty exit block, which leaves the procedure. Optimization passes rewrite the graph,
+ * the code is emitted by {@link #lower(ExtendedBackendBinSM)}.
+ * <p>
+ * Words of the frame are numbered as allocated while recording the procedure. Lowering allocates
+ * them again in the same order, so temporaries added by passes do not collide with them.
+ */
+public class ControlFlowGraph {
+
+    public final int label;
+    public final int nParams;
+    public final boolean main;
+    public final int exitLabel;
+
+    public final List<BasicBlock> blocks = new ArrayList<>();
+
+    private final IntSupplier newLabel;
+    private int nBlocks = 0;
+
+    /**
+     * next word for temporaries, above all words used by the recorded code
+     */
+    private int nextWord;
+
+    private ControlFlowGraph(int label, int nParams, boolean main, int exitLabel, int frameSize, IntSupplier newLabel) {
+        this.label = label;
+        this.nParams = nParams;
+        this.main = main;
+        this.exitLabel = exitLabel;
+        this.nextWord = frameSize;
+        this.newLabel = newLabel;
+    }
+
+    /**
+     * Splits the recorded code of a procedure into basic blocks.
+     *
+     * @param frameSize  number of words of the frame used by the code
+     * @param labelAlias maps labels merged into others to the label they refer to
+     * @param newLabel   creates labels of the backend
+     */
+    public static ControlFlowGraph build(int label, int nParams, boolean main, int exitLabel, int frameSize,
+                                         List<IrInstruction> code, IntUnaryOperator labelAlias, IntSupplier newLabel) {
+        ControlFlowGraph graph = new ControlFlowGraph(label, nParams, main, exitLabel, frameSize, newLabel);
+        Map<Integer, BasicBlock> labelBlocks = new HashMap<>();
+
+        BasicBlock entry = graph.newBlock(), current = entry;
+        graph.blocks.add(entry);
+
+        for (IrInstruction instruction : code) {
+            if (instruction.op == IrOp.LABEL) {
+                if (current == entry || !current.instructions.isEmpty()) {
+                    current = graph.newBlock();
+                    graph.blocks.add(current);
+                }
+                current.labels.add(instruction.operand);
+                labelBlocks.put(instruction.operand, current);
+                continue;
+            }
+
+            current.instructions.add(instruction);
+            if (instruction.op.isBranch()) {
+                current = graph.newBlock();
+                graph.blocks.add(current);
+            }
+        }
+
+        BasicBlock exit = graph.newBlock();
+        exit.labels.add(exitLabel);
+        labelBlocks.put(exitLabel, exit);
+        graph.blocks.add(exit);
+
+        for (BasicBlock block : graph.blocks) {
+            IrInstruction branch = block.branch();
+            if (branch == null)
+                continue;
+
+            branch.target = labelBlocks.get(labelAlias.applyAsInt(branch.label));
+            if (branch.target == null)
+                throw new IllegalStateException("Jump to label " + branch.label + ", which is not assigned within the procedure.");
+        }
+
+        graph.update();
+        return graph;
+    }
+
+    public BasicBlock newBlock() {
+        return new BasicBlock(nBlocks++);
+    }
+
+    public BasicBlock entry() {
+        return blocks.get(0);
+    }
+
+    public BasicBlock exit() {
+        return blocks.get(blocks.size() - 1);
+    }
+
+    /**
+     * @return the next block of the layout, null for the exit block
+     */
+    public BasicBlock next(BasicBlock block) {
+        int index = blocks.indexOf(block);
+        return index + 1 < blocks.size() ? blocks.get(index + 1) : null;
+    }
+
+    /**
+     * Allocates a new word of the frame for the rest of the procedure.
+     *
+     * @return the word, as used by instructions of the graph
+     */
+    public int newTemporary() {
+        int word = nextWord++;
+        entry().instructions.add(0, IrInstruction.allocStack(word, 1));
+        return word;
+    }
+
+    /**
+     * @return whether a temporary still fits into a frame addressed by the backend
+     */
+    public boolean hasRoomForTemporary() {
+        return nextWord < SpillRecord.MAX_FRAME_SIZE;
+    }
+
+    /**
+     * @return a label of the block, which is added if the block has none
+     */
+    public int labelOf(BasicBlock block) {
+        if (block.labels.isEmpty())
+            block.labels.add(newLabel.getAsInt());
+        return block.labels.get(0);
+    }
+
+    /**
+     * Recomputes the predecessors and successors of all blocks, and their stack depths,
+     * after blocks or branches were changed.
+     */
+    public void update() {
+        for (BasicBlock block : blocks) {
+            block.predecessors.clear();
+            block.successors.clear();
+            block.stackDepth = IrInstruction.UNKNOWN;
+        }
+
+        for (int i = 0; i < blocks.size(); i++) {
+            BasicBlock block = blocks.get(i);
+            IrInstruction branch = block.branch();
+            if (branch != null)
+                addEdge(block, branch.target);
+            if (block.fallsThrough() && i + 1 < blocks.size())
+                addEdge(block, blocks.get(i + 1));
+        }
+
+        Deque<BasicBlock> worklist = new ArrayDeque<>();
+        entry().stackDepth = 0;
+        worklist.add(entry());
+        while (!worklist.isEmpty()) {
+            BasicBlock block = worklist.poll();
+            int depth = block.stackDepthAtEnd();
+            if (depth == IrInstruction.UNKNOWN)
+                continue;
+
+            for (BasicBlock successor : block.successors) {
+                if (successor.stackDepth == IrInstruction.UNKNOWN) {
+                    successor.stackDepth = depth;
+                    worklist.add(successor);
+                }
+            }
+        }
+    }
+
+    private static void addEdge(BasicBlock from, BasicBlock to) {
+        if (!from.successors.contains(to)) {
+            from.successors.add(to);
+            to.predecessors.add(from);
+        }
+    }
+
+    /**
+     * @return whether the procedure may leave a value on the expression stack
+     */
+    public boolean returnsValue() {
+        for (BasicBlock block : exit().predecessors)
+            if (block.stackDepthAtEnd() > 0)
+                return true;
+        return false;
+    }
+
+    /**
+     * Emits the code of the procedure through the backend.
+     */
+    public void lower(ExtendedBackendBinSM backend) {
+        for (BasicBlock block : blocks) {
+            IrInstruction branch = block.branch();
+            if (branch != null)
+                labelOf(branch.target);
+        }
+
+        // words of the frame as allocated by the backend
+        int[] words = new int[nextWord];
+        Arrays.setAll(words, word -> word);
+
+        backend.enterProc(label, nParams, main);
+        for (BasicBlock block : blocks) {
+            for (int blockLabel : block.labels)
+                if (block != exit() || blockLabel != exitLabel)
+                    backend.assignLabel(blockLabel);
+
+            for (IrInstruction instruction : block.instructions) {
+                if (instruction.op == IrOp.ALLOC_STACK) {
+                    // unreachable blocks only keep their allocations to allocate the words in the same order
+                    int offset = instruction.value && block.stackDepth != IrInstruction.UNKNOWN
+                            ? backend.allocStackCleared(instruction.words) : backend.allocStack(instruction.words);
+                    for (int i = 0; i < instruction.words; i++)
+                        words[instruction.operand + i] = offset + i;
+                } else {
+                    lower(backend, instruction, word -> words[word]);
+                }
+            }
+        }
+        backend.exitProc(exitLabel);
+    }
+
+    /**
+     * Emits a single instruction through the backend.
+     *
+     * @param words maps words of the frame to the words allocated by the backend
+     */
+    public static void lower(ExtendedBackendBinSM backend, IrInstruction instruction, IntUnaryOperator words) {
+        int label = instruction.target != null ? instruction.target.labels.get(0) : instruction.label;
+
+        switch (instruction.op) {
+            case LOAD_CONST:
+                backend.loadConst(instruction.operand);
+                break;
+            case LOAD_WORD:
+                backend.loadWord(instruction.region, instruction.region == MemoryRegion.STACK
+                        ? words.applyAsInt(instruction.operand) : instruction.operand);
+                break;
+            case STORE_WORD:
+                backend.storeWord(instruction.region, instruction.region == MemoryRegion.STACK
+                        ? words.applyAsInt(instruction.operand) : instruction.operand);
+                break;
+            case LOAD_ARRAY_ELEMENT:
+                backend.loadArrayElement();
+                break;
+            case STORE_ARRAY_ELEMENT:
+                backend.storeArrayElement();
+                break;
+            case ARRAY_LENGTH:
+                backend.arrayLength();
+                break;
+            case ALLOC_HEAP:
+                backend.allocHeap(instruction.operand);
+                break;
+            case STORE_ARRAY_DIM:
+                backend.storeArrayDim(instruction.operand);
+                break;
+            case ALLOC_ARRAY:
+                backend.allocArray();
+                break;
+            case WRITE_INTEGER:
+                backend.writeInteger();
+                break;
+            case WRITE_STRING:
+                backend.writeString(instruction.operand);
+                break;
+            case WRITE_BOOLEAN:
+                backend.writeBoolean();
+                break;
+            case READ_INTEGER:
+                backend.readInteger();
+                break;
+            case NEG:
+                backend.neg();
+                break;
+            case NOT:
+                backend.not();
+                break;
+            case ADD:
+                backend.add();
+                break;
+            case SUB:
+                backend.sub();
+                break;
+            case MUL:
+                backend.mul();
+                break;
+            case DIV:
+                backend.div();
+                break;
+            case MOD:
+                backend.mod();
+                break;
+            case SHL:
+                backend.shiftLeft();
+                break;
+            case SHR:
+                backend.shiftRight();
+                break;
+            case AND:
+                backend.and();
+                break;
+            case OR:
+                backend.or();
+                break;
+            case IS_EQUAL:
+                backend.isEqual();
+                break;
+            case IS_NOT_EQUAL:
+                backend.isNotEqual();
+                break;
+            case IS_LESS:
+                backend.isLess();
+                break;
+            case IS_LESS_OR_EQUAL:
+                backend.isLessOrEqual();
+                break;
+            case IS_GREATER:
+                backend.isGreater();
+                break;
+            case IS_GREATER_OR_EQUAL:
+                backend.isGreaterOrEqual();
+                break;
+            case POP:
+                backend.pop();
+                break;
+            case BRANCH_IF_VALUE:
+                backend.branchIf(instruction.value, label);
+                break;
+            case BRANCH_IF_COMPARISON:
+                backend.branchIf(instruction.comparison, label);
+                break;
+            case JUMP:
+                backend.jump(label);
+                break;
+            case CALL:
+                backend.callProc(instruction.operand);
+                break;
+            case ALLOC_STACK:
+                if (instruction.value)
+                    backend.allocStackCleared(instruction.words);
+                else
+                    backend.allocStack(instruction.words);
+                break;
+            case FREE_STACK:
+                backend.freeStack(words.applyAsInt(instruction.operand), instruction.words);
+                break;
+            case LABEL:
+                backend.assignLabel(instruction.operand);
+                break;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        for (BasicBlock block : blocks) {
+            text.append(block).append(' ').append(block.labels).append(" depth ").append(block.stackDepth)
+                    .append(" -> ").append(block.successors).append('\n');
+            for (IrInstruction instruction : block.instructions)
+                text.append("    ").append(instruction).append('\n');
+        }
+        return text.toString();
+    }
+}
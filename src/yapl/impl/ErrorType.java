@@ -45,7 +45,9 @@ public enum ErrorType {
     /* Code generation errors */
 
     NoMoreRegs(CompilerError.NoMoreRegs, "Too many registers used."),
-    TooManyDims(CompilerError.TooManyDims, "Too many array dimensions.");
+    TooManyDims(CompilerError.TooManyDims, "Too many array dimensions."),
+    CodeTooLarge(CompilerError.CodeTooLarge, "Code too large: %s."),
+    TooManyParams(CompilerError.TooManyParams, "Too many parameters: %s.");
 
     /* --- End of error numbers --- */
 
@@ -0,0 +1,173 @@
+package yapl.impl;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static yapl.impl.Instruction.*;
+
+/**
+ * The code of a small, completely emitted procedure, which the backend substitutes for calls to it.
+ * <p>
+ * The parameters and local variables of the callee are mapped to words allocated in the frame of the
+ * caller. The inlined code pops the arguments into the parameter words and clears the local variables
+ * which may be read before they are written, like <code>enter</code> does:
+ * <pre>
+ * call P  ->  store p(n-1) ... store p0; const0; store l; ...; body of P
+ * </pre>
+ * Every <code>exit; return</code> in the body becomes a jump to the end of the inlined code,
+ * the return value stays on the expression stack.
+ * <p>
+ * Only procedures whose code is complete, and which do not call themselves, are candidates, so
+ * they cannot be recursive: every procedure they call was completed before them.
+ * A call is inlined if its cost, the size of the inlined code minus the size of the call,
+ * is within the threshold of the backend.
+ */
+public class InlineCandidate {
+
+    private static final int NONE = -1;
+
+    private static final Instruction[] SHORT_LOADS = {load0, load1, load2, load3};
+    private static final Instruction[] SHORT_STORES = {store0, store1, store2, store3};
+
+    public final int nParams;
+    public final int frameSize;
+
+    /**
+     * the decoded code, starting with enter and ending with exit; return
+     */
+    public final ProcedureCode code;
+
+    /**
+     * local variables which have to be cleared before the body
+     */
+    public final int[] clearedLocals;
+
+    /**
+     * size of the inlined code (assuming long forms of load and store) minus the size of the call
+     */
+    public final int cost;
+
+    private InlineCandidate(ProcedureCode code, int[] clearedLocals, int cost) {
+        this.nParams = code.operand(0);
+        this.frameSize = code.operand2(0);
+        this.code = code;
+        this.clearedLocals = clearedLocals;
+        this.cost = cost;
+    }
+
+    /**
+     * @param code    decoded code of a completed procedure without pending label references
+     * @param maxCost highest cost of calls which are inlined
+     * @return the procedure as candidate for inlining, null if it is too large or cannot be inlined
+     */
+    public static InlineCandidate of(ProcedureCode code, int maxCost) {
+        int n = code.size();
+        if (n < 3 || code.instruction(0) != enter || code.instruction(n - 2) != exit || code.instruction(n - 1) != return_)
+            return null;
+
+        int size = 0;
+        for (int i = 1; i < n; i++) {
+            Instruction instruction = code.instruction(i);
+
+            if (instruction == exit && code.instruction(i + 1) != return_
+                    || instruction == return_ && code.instruction(i - 1) != exit
+                    || instruction.isJump() && code.target(i) <= 0
+                    || instruction == call && code.target(i) == 0
+                    || instruction == enter)
+                return null;
+
+            if (instruction == return_)
+                size += i == n - 1 ? 0 : jmp.size();
+            else if (instruction != exit)
+                size += frameWord(instruction, code.operand(i)) != NONE ? load.size() : instruction.size();
+        }
+
+        int[] clearedLocals = clearedLocals(code);
+        size += code.operand(0) * store.size() + clearedLocals.length * (const0.size() + store.size());
+
+        int cost = size - call.size();
+        return cost <= maxCost ? new InlineCandidate(code, clearedLocals, cost) : null;
+    }
+
+    /**
+     * @return the local variables which may be read before they are written on some path through the body,
+     * and have to be cleared when the body is entered without enter
+     */
+    public static int[] clearedLocals(ProcedureCode code) {
+        int[] words = new int[code.size()];
+        for (int i = 0; i < words.length; i++)
+            words[i] = frameWord(code.instruction(i), code.operand(i));
+        return clearedLocals(code, code.operand(0), code.operand2(0), words);
+    }
+
+    /**
+     * @param words frame word accessed by each instruction, NONE if it accesses none
+     * @return the local variables which may be read before they are written on some path through the body
+     */
+    public static int[] clearedLocals(ProcedureCode code, int nParams, int frameSize, int[] words) {
+        int n = code.size();
+
+        // words written on every path to an instruction, null while no path is known
+        BitSet[] written = new BitSet[n];
+        written[code.next(0)] = new BitSet();
+        BitSet cleared = new BitSet();
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = code.next(0); i != NONE; i = code.next(i)) {
+                if (written[i] == null)
+                    continue;
+
+                Instruction instruction = code.instruction(i);
+                BitSet out = (BitSet) written[i].clone();
+                int word = words[i];
+                if (word >= nParams && word < frameSize) {
+                    if (isStore(instruction))
+                        out.set(word);
+                    else if (!out.get(word))
+                        cleared.set(word);
+                }
+
+                if (instruction.isJump())
+                    changed |= merge(written, code.target(i), out);
+                if (instruction != jmp && instruction != return_)
+                    changed |= merge(written, code.next(i), out);
+            }
+        }
+
+        return cleared.stream().toArray();
+    }
+
+    /**
+     * @return whether the words written before the instruction changed
+     */
+    private static boolean merge(BitSet[] written, int index, BitSet words) {
+        if (index == NONE)
+            return false;
+
+        if (written[index] == null) {
+            written[index] = (BitSet) words.clone();
+            return true;
+        }
+
+        int before = written[index].cardinality();
+        written[index].and(words);
+        return written[index].cardinality() != before;
+    }
+
+    /**
+     * @return the word of the frame accessed by a load or store, NONE for other instructions
+     */
+    public static int frameWord(Instruction instruction, int operand) {
+        if (instruction == load || instruction == store)
+            return operand;
+
+        int word = Arrays.asList(SHORT_LOADS).indexOf(instruction);
+        return word != NONE ? word : Arrays.asList(SHORT_STORES).indexOf(instruction);
+    }
+
+    public static boolean isStore(Instruction instruction) {
+        return instruction == store || Arrays.asList(SHORT_STORES).contains(instruction);
+    }
+}
@@ -1,20 +1,20 @@
 package yapl.impl;
 
 public enum Instruction {
-    load(1),
+    load(1, OperandType.s8),
     load0(2),
     load1(3),
     load2(4),
     load3(5),
-    store(6),
+    store(6, OperandType.s8),
     store0(7),
     store1(8),
     store2(9),
     store3(10),
-    getstatic(11),
-    putstatic(12),
-    getfield(13),
-    putfield(14),
+    getstatic(11, OperandType.s16),
+    putstatic(12, OperandType.s16),
+    getfield(13, OperandType.s16),
+    putfield(14, OperandType.s16),
     const0(15),
     const1(16),
     const2(17),
@@ -22,7 +22,7 @@ public enum Instruction {
     const4(19),
     const5(20),
     const_m1(21),
-    const_(22),
+    const_(22, OperandType.s32),
     add(23),
     sub(24),
     mul(25),
@@ -31,36 +31,83 @@ public enum Instruction {
     neg(28),
     shl(29),
     shr(30),
-    new_(31),
-    newarray(32),
+    new_(31, OperandType.s16),
+    newarray(32, OperandType.s8),
     aload(33),
     astore(34),
     baload(35),
     bastore(36),
     arraylength(37),
     pop(38),
-    jmp(39),
-    jeq(40),
-    jne(41),
-    jlt(42),
-    jle(43),
-    jgt(44),
-    jge(45),
-    call(46),
+    jmp(39, OperandType.s16),
+    jeq(40, OperandType.s16),
+    jne(41, OperandType.s16),
+    jlt(42, OperandType.s16),
+    jle(43, OperandType.s16),
+    jgt(44, OperandType.s16),
+    jge(45, OperandType.s16),
+    call(46, OperandType.s16),
     return_(47),
-    enter(48),
+    enter(48, OperandType.s8, OperandType.s8),
     exit(49),
     read(50),
     print(51),
     bread(52),
     bprint(53),
-    trap(54),
-    sprint(55),
+    trap(54, OperandType.s8),
+    sprint(55, OperandType.s16),
     last(56);
 
+    private static final Instruction[] BY_OPCODE = new Instruction[last.value + 1];
+
+    static {
+        for (Instruction instruction : values())
+            BY_OPCODE[instruction.value] = instruction;
+    }
+
     byte value;
 
-    Instruction(int value) {
+    /**
+     * types of the explicit operands, in order
+     */
+    final OperandType[] operands;
+
+    Instruction(int value, OperandType... operands) {
         this.value = (byte) value;
+        this.operands = operands;
+    }
+
+    /**
+     * @return size of the instruction including its operands in bytes
+     */
+    public int size() {
+        int size = 1;
+        for (OperandType operand : operands)
+            size += operand.size;
+        return size;
+    }
+
+    /**
+     * @return whether the operand is a code address (jumps and call)
+     */
+    public boolean hasCodeAddress() {
+        return this == call || isJump();
+    }
+
+    public boolean isJump() {
+        return this == jmp || isConditionalJump();
+    }
+
+    public boolean isConditionalJump() {
+        return value >= jeq.value && value <= jge.value;
+    }
+
+    /**
+     * @return the instruction with the given opcode
+     */
+    public static Instruction fromOpcode(int opcode) {
+        if (opcode <= 0 || opcode >= BY_OPCODE.length || BY_OPCODE[opcode] == null)
+            throw new IllegalArgumentException("Invalid opcode " + opcode + ".");
+        return BY_OPCODE[opcode];
     }
 }
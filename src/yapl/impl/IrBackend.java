@@ -0,0 +1,474 @@
+package yapl.impl;
+
+import yapl.interfaces.Comparison;
+import yapl.interfaces.ExtendedBackendBinSM;
+import yapl.interfaces.MemoryRegion;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backend recording the code of every procedure in the intermediate representation.
+ * When a procedure is complete, its {@link ControlFlowGraph} is built, optimized by the
+ * {@link PassManager} and lowered to the target backend, which also receives all calls
+ * not emitting code (labels, static data, object file).
+ * <p>
+ * Code regions started by {@link #beginDeadCode()} are dropped while recording,
+ * except for their frame allocations.
+ */
+public class IrBackend implements ExtendedBackendBinSM {
+
+    private final ExtendedBackendBinSM target;
+    private final PassManager passManager;
+
+    /**
+     * handles of the labels used via the String based interface
+     */
+    private final Map<String, Integer> namedLabels = new HashMap<>();
+
+    /**
+     * labels merged into another one, see {@link #mergeLabels(int, int)}
+     */
+    private final Map<Integer, Integer> mergedLabels = new HashMap<>();
+
+    /**
+     * number of parameters and whether a value is returned, by procedure label
+     */
+    private final Map<Integer, Integer> procedureParams = new HashMap<>();
+    private final Map<Integer, Boolean> procedureResults = new HashMap<>();
+
+    /**
+     * the procedure being recorded, null outside of procedures
+     */
+    private List<IrInstruction> code;
+    private Procedure procedure;
+    private boolean main;
+
+    private int deadCodeDepth = 0;
+    private int deadCodeStart;
+
+    /**
+     * number of dimensions of the arrays being allocated, see {@link BackendMJ#storeArrayDim(int)}
+     */
+    private int[] arrayRanks = new int[4];
+    private int nArrayRanks = 0;
+
+    public IrBackend(ExtendedBackendBinSM target, PassManager passManager) {
+        this.target = target;
+        this.passManager = passManager;
+    }
+
+    private void emit(IrInstruction instruction) {
+        if (code == null)
+            ControlFlowGraph.lower(target, instruction, word -> word);
+        else
+            code.add(instruction);
+    }
+
+    private void emit(IrOp op) {
+        emit(new IrInstruction(op));
+    }
+
+    private int namedLabel(String label) {
+        return namedLabels.computeIfAbsent(label, l -> target.newLabel());
+    }
+
+    private int resolveLabel(int label) {
+        Integer into;
+        while ((into = mergedLabels.get(label)) != null)
+            label = into;
+        return label;
+    }
+
+    @Override
+    public int wordSize() {
+        return target.wordSize();
+    }
+
+    @Override
+    public int boolValue(boolean value) {
+        return target.boolValue(value);
+    }
+
+    @Override
+    public int newLabel() {
+        return target.newLabel();
+    }
+
+    @Override
+    public int codeSize() {
+        return target.codeSize();
+    }
+
+    @Override
+    public void assignLabel(String label) {
+        assignLabel(namedLabel(label));
+    }
+
+    @Override
+    public void assignLabel(int label) {
+        emit(new IrInstruction(IrOp.LABEL, label));
+    }
+
+    @Override
+    public void mergeLabels(int label, int into) {
+        if (code == null)
+            target.mergeLabels(label, into);
+        else
+            mergedLabels.put(label, into);
+    }
+
+    @Override
+    public void writeObjectFile(OutputStream outStream) throws IOException {
+        target.writeObjectFile(outStream);
+    }
+
+    @Override
+    public void writeObjectFile(FileChannel channel) throws IOException {
+        target.writeObjectFile(channel);
+    }
+
+    @Override
+    public void writeObjectFileMapped(Path path) throws IOException {
+        target.writeObjectFileMapped(path);
+    }
+
+    @Override
+    public void beginObjectFile(FileChannel channel) {
+        target.beginObjectFile(channel);
+    }
+
+    @Override
+    public void setInlineThreshold(int threshold) {
+        target.setInlineThreshold(threshold);
+    }
+
+    @Override
+    public int allocStaticData(int words) {
+        return target.allocStaticData(words);
+    }
+
+    @Override
+    public int allocStringConstant(String string) {
+        return target.allocStringConstant(string);
+    }
+
+    @Override
+    public int allocStack(int words) {
+        if (procedure == null)
+            throw new IllegalStateException("Cannot allocate variables without a procedure.");
+
+        int offset = procedure.allocStackVariable(words);
+        code.add(IrInstruction.allocStack(offset, words));
+        return offset;
+    }
+
+    @Override
+    public int allocStackCleared(int words) {
+        if (procedure == null)
+            throw new IllegalStateException("Cannot allocate variables without a procedure.");
+
+        int offset = procedure.allocStackVariable(words);
+        code.add(IrInstruction.allocStackCleared(offset, words));
+        return offset;
+    }
+
+    @Override
+    public void freeStack(int offset, int words) {
+        if (procedure == null)
+            throw new IllegalStateException("Cannot free variables without a procedure.");
+
+        procedure.freeStackVariable(offset, words);
+        code.add(IrInstruction.freeStack(offset, words));
+    }
+
+    @Override
+    public void allocHeap(int words) {
+        emit(new IrInstruction(IrOp.ALLOC_HEAP, words));
+    }
+
+    @Override
+    public void storeArrayDim(int dim) {
+        if (dim == 0) {
+            if (nArrayRanks == arrayRanks.length)
+                arrayRanks = Arrays.copyOf(arrayRanks, nArrayRanks * 2);
+            nArrayRanks++;
+        }
+        arrayRanks[nArrayRanks - 1] = dim + 1;
+
+        emit(new IrInstruction(IrOp.STORE_ARRAY_DIM, dim));
+    }
+
+    @Override
+    public void allocArray() {
+        emit(IrInstruction.allocArray(nArrayRanks > 0 ? arrayRanks[--nArrayRanks] : IrInstruction.UNKNOWN));
+    }
+
+    @Override
+    public void loadConst(int value) {
+        emit(new IrInstruction(IrOp.LOAD_CONST, value));
+    }
+
+    @Override
+    public void loadWord(MemoryRegion region, int offset) {
+        emit(IrInstruction.loadWord(region, offset));
+    }
+
+    @Override
+    public void storeWord(MemoryRegion region, int offset) {
+        emit(IrInstruction.storeWord(region, offset));
+    }
+
+    @Override
+    public void loadArrayElement() {
+        emit(IrOp.LOAD_ARRAY_ELEMENT);
+    }
+
+    @Override
+    public void storeArrayElement() {
+        emit(IrOp.STORE_ARRAY_ELEMENT);
+    }
+
+    @Override
+    public void arrayLength() {
+        emit(IrOp.ARRAY_LENGTH);
+    }
+
+    @Override
+    public void writeInteger() {
+        emit(IrOp.WRITE_INTEGER);
+    }
+
+    @Override
+    public void writeString(int addr) {
+        emit(new IrInstruction(IrOp.WRITE_STRING, addr));
+    }
+
+    @Override
+    public void writeBoolean() {
+        emit(IrOp.WRITE_BOOLEAN);
+    }
+
+    @Override
+    public void readInteger() {
+        emit(IrOp.READ_INTEGER);
+    }
+
+    @Override
+    public void neg() {
+        emit(IrOp.NEG);
+    }
+
+    @Override
+    public void not() {
+        emit(IrOp.NOT);
+    }
+
+    @Override
+    public void add() {
+        emit(IrOp.ADD);
+    }
+
+    @Override
+    public void sub() {
+        emit(IrOp.SUB);
+    }
+
+    @Override
+    public void mul() {
+        emit(IrOp.MUL);
+    }
+
+    @Override
+    public void div() {
+        emit(IrOp.DIV);
+    }
+
+    @Override
+    public void mod() {
+        emit(IrOp.MOD);
+    }
+
+    @Override
+    public void shiftLeft() {
+        emit(IrOp.SHL);
+    }
+
+    @Override
+    public void shiftRight() {
+        emit(IrOp.SHR);
+    }
+
+    @Override
+    public void and() {
+        emit(IrOp.AND);
+    }
+
+    @Override
+    public void or() {
+        emit(IrOp.OR);
+    }
+
+    @Override
+    public void isEqual() {
+        emit(IrOp.IS_EQUAL);
+    }
+
+    @Override
+    public void isNotEqual() {
+        emit(IrOp.IS_NOT_EQUAL);
+    }
+
+    @Override
+    public void isLess() {
+        emit(IrOp.IS_LESS);
+    }
+
+    @Override
+    public void isLessOrEqual() {
+        emit(IrOp.IS_LESS_OR_EQUAL);
+    }
+
+    @Override
+    public void isGreater() {
+        emit(IrOp.IS_GREATER);
+    }
+
+    @Override
+    public void isGreaterOrEqual() {
+        emit(IrOp.IS_GREATER_OR_EQUAL);
+    }
+
+    @Override
+    public void pop() {
+        emit(IrOp.POP);
+    }
+
+    @Override
+    public void branchIf(boolean value, String label) {
+        branchIf(value, namedLabel(label));
+    }
+
+    @Override
+    public void branchIf(boolean value, int label) {
+        emit(IrInstruction.branchIf(value, label));
+    }
+
+    @Override
+    public void branchIf(Comparison comparison, int label) {
+        emit(IrInstruction.branchIf(comparison, label));
+    }
+
+    @Override
+    public void jump(String label) {
+        jump(namedLabel(label));
+    }
+
+    @Override
+    public void jump(int label) {
+        emit(IrInstruction.jump(label));
+    }
+
+    @Override
+    public void callProc(String label) {
+        callProc(namedLabel(label));
+    }
+
+    @Override
+    public void callProc(int label) {
+        Boolean returnsValue = procedureResults.get(label);
+        emit(IrInstruction.call(label, procedureParams.getOrDefault(label, IrInstruction.UNKNOWN),
+                returnsValue == null ? IrInstruction.UNKNOWN : returnsValue ? 1 : 0));
+    }
+
+    @Override
+    public void enterProc(String label, int nParams, boolean main) {
+        enterProc(namedLabel(label), nParams, main);
+    }
+
+    @Override
+    public void enterProc(int label, int nParams, boolean main) {
+        if (procedure != null)
+            throw new IllegalStateException("Sub-Procedures are not allowed.");
+
+        procedureParams.put(label, nParams);
+        procedure = new Procedure(label, nParams, 0, 0, 0);
+        code = new ArrayList<>();
+        this.main = main;
+    }
+
+    @Override
+    public void exitProc(String label) {
+        exitProc(namedLabel(label));
+    }
+
+    @Override
+    public void exitProc(int label) {
+        if (procedure == null)
+            throw new IllegalStateException("No procedure to exit.");
+
+        Procedure procedure = this.procedure;
+        ControlFlowGraph graph = passManager.time("build-cfg", () -> ControlFlowGraph.build(procedure.label,
+                procedure.nParams, main, label, procedure.calculateFrameSize(), code, this::resolveLabel, target::newLabel));
+
+        // the stack effect of recursive calls is only known now
+        boolean returnsValue = graph.returnsValue();
+        procedureResults.put(procedure.label, returnsValue);
+        boolean recursive = false;
+        for (IrInstruction instruction : code) {
+            if (instruction.op == IrOp.CALL && instruction.operand == procedure.label) {
+                instruction.pushes = returnsValue ? 1 : 0;
+                recursive = true;
+            }
+        }
+        if (recursive)
+            graph.update();
+
+        passManager.run(graph);
+        passManager.time("lower", () -> {
+            graph.lower(target);
+            return null;
+        });
+
+        this.procedure = null;
+        code = null;
+    }
+
+    @Override
+    public int paramOffset(int index) {
+        return target.paramOffset(index);
+    }
+
+    @Override
+    public void beginDeadCode() {
+        if (deadCodeDepth++ == 0)
+            deadCodeStart = code != null ? code.size() : 0;
+
+        if (code == null)
+            target.beginDeadCode();
+    }
+
+    @Override
+    public void endDeadCode() {
+        if (deadCodeDepth == 0)
+            throw new IllegalStateException("No dead code region to end.");
+
+        if (code == null) {
+            deadCodeDepth--;
+            target.endDeadCode();
+            return;
+        }
+
+        if (--deadCodeDepth == 0) {
+            List<IrInstruction> dropped = code.subList(deadCodeStart, code.size());
+            dropped.removeIf(instruction -> instruction.op != IrOp.ALLOC_STACK && instruction.op != IrOp.FREE_STACK);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package yapl.impl;
+
+import yapl.interfaces.Comparison;
+import yapl.interfaces.MemoryRegion;
+
+/**
+ * A single instruction of the intermediate representation: one call of a code emitting
+ * backend method with its arguments, annotated with its effect on the expression stack.
+ * <p>
+ * Jumps and branches refer to their target label while the procedure is recorded,
+ * and to the target block once the {@link ControlFlowGraph} is built.
+ */
+public class IrInstruction {
+
+    public final IrOp op;
+
+    /**
+     * constant, word offset, static data address, procedure label or number of words, depending on op
+     */
+    public final int operand;
+
+    /**
+     * number of words of ALLOC_STACK and FREE_STACK
+     */
+    public final int words;
+
+    public final MemoryRegion region;
+    public final Comparison comparison;
+
+    /**
+     * branch condition of BRANCH_IF_VALUE, whether ALLOC_STACK clears the words
+     */
+    public final boolean value;
+
+    /**
+     * number of operands popped from and pushed onto the expression stack, UNKNOWN for calls
+     * of procedures whose return value is not known yet
+     */
+    public final int pops;
+    public int pushes;
+
+    public static final int UNKNOWN = -1;
+
+    /**
+     * target label of a jump or branch
+     */
+    public int label;
+
+    /**
+     * target block of a jump or branch
+     */
+    public BasicBlock target;
+
+    private IrInstruction(IrOp op, int operand, int words, MemoryRegion region, Comparison comparison, boolean value,
+                          int pops, int pushes) {
+        this.op = op;
+        this.operand = operand;
+        this.words = words;
+        this.region = region;
+        this.comparison = comparison;
+        this.value = value;
+        this.pops = pops;
+        this.pushes = pushes;
+    }
+
+    public IrInstruction(IrOp op) {
+        this(op, 0, 0, null, null, false, op.pops, op.pushes);
+    }
+
+    public IrInstruction(IrOp op, int operand) {
+        this(op, operand, 0, null, null, false, op.pops, op.pushes);
+    }
+
+    public static IrInstruction loadWord(MemoryRegion region, int offset) {
+        // a heap word is loaded from the address on the expression stack
+        return new IrInstruction(IrOp.LOAD_WORD, offset, 0, region, null, false, region == MemoryRegion.HEAP ? 1 : 0, 1);
+    }
+
+    public static IrInstruction storeWord(MemoryRegion region, int offset) {
+        // a heap word is stored at the address below the value
+        return new IrInstruction(IrOp.STORE_WORD, offset, 0, region, null, false, region == MemoryRegion.HEAP ? 2 : 1, 0);
+    }
+
+    public static IrInstruction allocArray(int rank) {
+        return new IrInstruction(IrOp.ALLOC_ARRAY, 0, 0, null, null, false, rank, 1);
+    }
+
+    public static IrInstruction call(int label, int nParams, int pushes) {
+        return new IrInstruction(IrOp.CALL, label, 0, null, null, false, nParams, pushes);
+    }
+
+    public static IrInstruction allocStack(int offset, int words) {
+        return new IrInstruction(IrOp.ALLOC_STACK, offset, words, null, null, false, 0, 0);
+    }
+
+    public static IrInstruction allocStackCleared(int offset, int words) {
+        return new IrInstruction(IrOp.ALLOC_STACK, offset, words, null, null, true, 0, 0);
+    }
+
+    public static IrInstruction freeStack(int offset, int words) {
+        return new IrInstruction(IrOp.FREE_STACK, offset, words, null, null, false, 0, 0);
+    }
+
+    public static IrInstruction jump(int label) {
+        IrInstruction jump = new IrInstruction(IrOp.JUMP);
+        jump.label = label;
+        return jump;
+    }
+
+    public static IrInstruction branchIf(boolean value, int label) {
+        IrInstruction branch = new IrInstruction(IrOp.BRANCH_IF_VALUE, 0, 0, null, null, value, 1, 0);
+        branch.label = label;
+        return branch;
+    }
+
+    public static IrInstruction branchIf(Comparison comparison, int label) {
+        IrInstruction branch = new IrInstruction(IrOp.BRANCH_IF_COMPARISON, 0, 0, null, comparison, false, 2, 0);
+        branch.label = label;
+        return branch;
+    }
+
+    /**
+     * @return a jump or branch with the same condition to another block
+     */
+    public IrInstruction withTarget(BasicBlock target) {
+        IrInstruction branch = new IrInstruction(op, operand, words, region, comparison, value, pops, pushes);
+        branch.target = target;
+        return branch;
+    }
+
+    /**
+     * @return a branch on the negated condition to another block
+     */
+    public IrInstruction negated(BasicBlock target) {
+        IrInstruction branch = new IrInstruction(op, operand, words, region,
+                comparison != null ? comparison.negate() : null, !value, pops, pushes);
+        branch.target = target;
+        return branch;
+    }
+
+    /**
+     * @return an equal instruction, for code which is duplicated
+     */
+    public IrInstruction copy() {
+        return withTarget(target);
+    }
+
+    /**
+     * @return whether the instruction accesses the given word of the current frame
+     */
+    public boolean accessesFrameWord(int word) {
+        return (op == IrOp.LOAD_WORD || op == IrOp.STORE_WORD) && region == MemoryRegion.STACK && operand == word;
+    }
+
+    @Override
+    public String toString() {
+        switch (op) {
+            case LOAD_WORD:
+            case STORE_WORD:
+                return op + " " + region + " " + operand;
+            case BRANCH_IF_VALUE:
+                return op + " " + value + " -> " + (target != null ? target : "L" + label);
+            case BRANCH_IF_COMPARISON:
+                return op + " " + comparison + " -> " + (target != null ? target : "L" + label);
+            case JUMP:
+                return op + " -> " + (target != null ? target : "L" + label);
+            case ALLOC_STACK:
+            case FREE_STACK:
+                return op + " " + operand + " " + words;
+            default:
+                return op + " " + operand;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package yapl.impl;
+
+/**
+ * Operations of the intermediate representation, one per code emitting method of
+ * {@link yapl.interfaces.ExtendedBackendBinSM}, with their effect on the expression stack.
+ * Operations with a variable stack effect get it from their instruction, see {@link IrInstruction}.
+ */
+public enum IrOp {
+    LOAD_CONST(0, 1),
+    LOAD_WORD(0, 1),
+    STORE_WORD(1, 0),
+    LOAD_ARRAY_ELEMENT(2, 1),
+    STORE_ARRAY_ELEMENT(3, 0),
+    ARRAY_LENGTH(1, 1),
+    ALLOC_HEAP(0, 1),
+    STORE_ARRAY_DIM(0, 0),
+    ALLOC_ARRAY(0, 1),
+    WRITE_INTEGER(1, 0),
+    WRITE_STRING(0, 0),
+    WRITE_BOOLEAN(1, 0),
+    READ_INTEGER(0, 1),
+    NEG(1, 1),
+    NOT(1, 1),
+    ADD(2, 1),
+    SUB(2, 1),
+    MUL(2, 1),
+    DIV(2, 1),
+    MOD(2, 1),
+    SHL(2, 1),
+    SHR(2, 1),
+    AND(2, 1),
+    OR(2, 1),
+    IS_EQUAL(2, 1),
+    IS_NOT_EQUAL(2, 1),
+    IS_LESS(2, 1),
+    IS_LESS_OR_EQUAL(2, 1),
+    IS_GREATER(2, 1),
+    IS_GREATER_OR_EQUAL(2, 1),
+    POP(1, 0),
+    BRANCH_IF_VALUE(1, 0),
+    BRANCH_IF_COMPARISON(2, 0),
+    JUMP(0, 0),
+    CALL(0, 0),
+    ALLOC_STACK(0, 0),
+    FREE_STACK(0, 0),
+    /**
+     * assignment of a label, only while a procedure is recorded; labels belong to blocks in the graph
+     */
+    LABEL(0, 0);
+
+    /**
+     * number of operands popped from and pushed onto the expression stack
+     */
+    public final int pops, pushes;
+
+    IrOp(int pops, int pushes) {
+        this.pops = pops;
+        this.pushes = pushes;
+    }
+
+    public boolean isBranch() {
+        return this == BRANCH_IF_VALUE || this == BRANCH_IF_COMPARISON || this == JUMP;
+    }
+
+    public boolean isConditionalBranch() {
+        return this == BRANCH_IF_VALUE || this == BRANCH_IF_COMPARISON;
+    }
+
+    /**
+     * @return whether the operation only computes a value from its operands, without side effects or traps
+     */
+    public boolean isPure() {
+        switch (this) {
+            case LOAD_CONST:
+            case NEG:
+            case NOT:
+            case ADD:
+            case SUB:
+            case MUL:
+            case SHL:
+            case SHR:
+            case AND:
+            case OR:
+            case IS_EQUAL:
+            case IS_NOT_EQUAL:
+            case IS_LESS:
+            case IS_LESS_OR_EQUAL:
+            case IS_GREATER:
+            case IS_GREATER_OR_EQUAL:
+                return true;
+            default:
+                return false;
+        }
+    }
+}
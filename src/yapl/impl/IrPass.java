@@ -0,0 +1,14 @@
+package yapl.impl;
+
+/**
+ * An optimization pass on the {@link ControlFlowGraph} of a single procedure, run by the {@link PassManager}.
+ */
+public interface IrPass {
+
+    String name();
+
+    /**
+     * Rewrites the graph. Passes changing blocks or branches call {@link ControlFlowGraph#update()}.
+     */
+    void run(ControlFlowGraph graph);
+}
@@ -0,0 +1,49 @@
+package yapl.impl;
+
+/**
+ * Redirects jumps and branches to blocks which only consist of a jump to the final target of the chain,
+ * and removes jumps to the next block of the layout.
+ */
+public class JumpThreading implements IrPass {
+
+    @Override
+    public String name() {
+        return "jump-threading";
+    }
+
+    @Override
+    public void run(ControlFlowGraph graph) {
+        boolean changed = false;
+
+        for (BasicBlock block : graph.blocks) {
+            IrInstruction branch = block.branch();
+            if (branch == null)
+                continue;
+
+            BasicBlock target = finalTarget(branch.target);
+            if (target != branch.target) {
+                block.instructions.set(block.instructions.size() - 1, branch.withTarget(target));
+                changed = true;
+            }
+
+            if (branch.op == IrOp.JUMP && graph.next(block) == target) {
+                block.instructions.remove(block.instructions.size() - 1);
+                changed = true;
+            }
+        }
+
+        if (changed)
+            graph.update();
+    }
+
+    private static BasicBlock finalTarget(BasicBlock block) {
+        BasicBlock target = block;
+        // bounded, a cycle of jumps is never left
+        for (int steps = 0; steps < 16; steps++) {
+            if (target.instructions.size() != 1 || target.last().op != IrOp.JUMP || target.last().target == target)
+                break;
+            target = target.last().target;
+        }
+        return target;
+    }
+}
@@ -0,0 +1,253 @@
+package yapl.impl;
+
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Address labels identified by int handles.
+ * <p>
+ * References to a label that is already assigned (backward jumps) are written
+ * immediately. References to a label that is not assigned yet (forward jumps) are
+ * kept in a singly linked fixup list per label, which is patched and dropped as
+ * soon as the label gets assigned. Fixup nodes are recycled.
+ * All jump targets are s16 operands.
+ * <p>
+ * Code which has been emitted already may be rewritten (e.g. by the peephole optimizer),
+ * as long as the affected labels and fixups are moved along with it, see {@link #relocate}.
+ */
+public class LabelTable {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final int UNASSIGNED = -1;
+    private static final int NONE = -1;
+
+    // per label
+    private int[] addresses = new int[INITIAL_CAPACITY];
+    private int[] firstFixups = new int[INITIAL_CAPACITY];
+    private int nLabels = 0;
+
+    // per fixup node
+    private int[] fixupLocations = new int[INITIAL_CAPACITY];
+    private int[] nextFixups = new int[INITIAL_CAPACITY];
+    private int nFixupNodes = 0;
+    private int freeFixups = NONE;
+
+    private int pendingFixups = 0;
+
+    // labels in the order of their assignment, hence ordered by address
+    private int[] assignmentOrder = new int[INITIAL_CAPACITY];
+    private int nAssigned = 0;
+
+    /**
+     * @return handle of a new, unassigned label
+     */
+    public int newLabel() {
+        if (nLabels == addresses.length) {
+            addresses = Arrays.copyOf(addresses, nLabels * 2);
+            firstFixups = Arrays.copyOf(firstFixups, nLabels * 2);
+        }
+
+        addresses[nLabels] = UNASSIGNED;
+        firstFixups[nLabels] = NONE;
+        return nLabels++;
+    }
+
+    private void checkLabel(int label) {
+        if (label < 0 || label >= nLabels)
+            throw new IllegalArgumentException("Unknown label " + label + ".");
+    }
+
+    public boolean isAssigned(int label) {
+        checkLabel(label);
+        return addresses[label] != UNASSIGNED;
+    }
+
+    /**
+     * @return code address of an assigned label
+     */
+    public int address(int label) {
+        if (!isAssigned(label))
+            throw new IllegalStateException("Label " + label + " is not assigned.");
+        return addresses[label];
+    }
+
+    /**
+     * Assigns the label to the given code address and patches all pending references.
+     */
+    public void assign(int label, int address, CodeBuffer code) {
+        if (isAssigned(label))
+            throw new IllegalStateException("Label already exists.");
+
+        addresses[label] = address;
+
+        if (nAssigned == assignmentOrder.length)
+            assignmentOrder = Arrays.copyOf(assignmentOrder, nAssigned * 2);
+        assignmentOrder[nAssigned++] = label;
+
+        int fixup = firstFixups[label];
+        while (fixup != NONE) {
+            code.patch16(fixupLocations[fixup], address);
+
+            int next = nextFixups[fixup];
+            fixupLocations[fixup] = NONE;
+            nextFixups[fixup] = freeFixups;
+            freeFixups = fixup;
+            fixup = next;
+            pendingFixups--;
+        }
+        firstFixups[label] = NONE;
+    }
+
+    /**
+     * Moves all pending references of an unassigned label to another label,
+     * so they get patched when the other label is assigned (or immediately if it already is).
+     * The merged label must not be used afterwards.
+     */
+    public void merge(int label, int into, CodeBuffer code) {
+        if (isAssigned(label))
+            throw new IllegalStateException("Cannot merge assigned label " + label + ".");
+        checkLabel(into);
+
+        int fixup = firstFixups[label];
+        firstFixups[label] = NONE;
+        while (fixup != NONE) {
+            int next = nextFixups[fixup];
+            int location = fixupLocations[fixup];
+
+            // release the node and reference the other label instead
+            fixupLocations[fixup] = NONE;
+            nextFixups[fixup] = freeFixups;
+            freeFixups = fixup;
+            pendingFixups--;
+
+            reference(into, location, code);
+            fixup = next;
+        }
+    }
+
+    /**
+     * Records a s16 reference to the label at the given code location.
+     * The location is written immediately if the label is already assigned.
+     */
+    public void reference(int label, int location, CodeBuffer code) {
+        if (isAssigned(label)) {
+            code.patch16(location, addresses[label]);
+            return;
+        }
+
+        int fixup = newFixupNode();
+        fixupLocations[fixup] = location;
+        nextFixups[fixup] = firstFixups[label];
+        firstFixups[label] = fixup;
+        pendingFixups++;
+    }
+
+    private int newFixupNode() {
+        if (freeFixups != NONE) {
+            int fixup = freeFixups;
+            freeFixups = nextFixups[fixup];
+            return fixup;
+        }
+
+        if (nFixupNodes == fixupLocations.length) {
+            fixupLocations = Arrays.copyOf(fixupLocations, nFixupNodes * 2);
+            nextFixups = Arrays.copyOf(nextFixups, nFixupNodes * 2);
+        }
+        return nFixupNodes++;
+    }
+
+    /**
+     * @return number of labels assigned so far, to be used as mark for {@link #assignedAddresses(int)}
+     * and {@link #relocate(int, int, int, IntUnaryOperator)}
+     */
+    public int assignedCount() {
+        return nAssigned;
+    }
+
+    /**
+     * @return addresses of all labels assigned after the given mark
+     */
+    public int[] assignedAddresses(int mark) {
+        int[] result = new int[nAssigned - mark];
+        for (int i = mark; i < nAssigned; i++)
+            result[i - mark] = addresses[assignmentOrder[i]];
+        return result;
+    }
+
+    /**
+     * @return sorted locations of all pending references within [from, to)
+     */
+    public int[] pendingFixupLocations(int from, int to) {
+        int[] result = new int[pendingFixups];
+        int n = 0;
+        // freed nodes are marked with NONE
+        for (int fixup = 0; fixup < nFixupNodes; fixup++)
+            if (fixupLocations[fixup] >= from && fixupLocations[fixup] < to)
+                result[n++] = fixupLocations[fixup];
+
+        result = Arrays.copyOf(result, n);
+        Arrays.sort(result);
+        return result;
+    }
+
+    /**
+     * Moves labels and pending references along with rewritten code in [from, to).
+     * All labels within this range must have been assigned after the given mark,
+     * and references must be operands directly following a one-byte opcode.
+     *
+     * @param newAddress maps the old address of an instruction to its new address
+     */
+    public void relocate(int mark, int from, int to, IntUnaryOperator newAddress) {
+        for (int i = mark; i < nAssigned; i++) {
+            int label = assignmentOrder[i];
+            if (addresses[label] >= from && addresses[label] <= to)
+                addresses[label] = newAddress.applyAsInt(addresses[label]);
+        }
+
+        for (int fixup = 0; fixup < nFixupNodes; fixup++)
+            if (fixupLocations[fixup] >= from && fixupLocations[fixup] < to)
+                fixupLocations[fixup] = newAddress.applyAsInt(fixupLocations[fixup] - 1) + 1;
+    }
+
+    /**
+     * Forgets about code from the given address on, which has been dropped.
+     * Labels assigned after the mark become unassigned again, and pending references
+     * located in the dropped code are removed.
+     */
+    public void discard(int mark, int from) {
+        for (int i = mark; i < nAssigned; i++)
+            addresses[assignmentOrder[i]] = UNASSIGNED;
+        nAssigned = mark;
+
+        for (int label = 0; label < nLabels; label++) {
+            int previous = NONE;
+            int fixup = firstFixups[label];
+            while (fixup != NONE) {
+                int next = nextFixups[fixup];
+
+                if (fixupLocations[fixup] >= from) {
+                    if (previous == NONE)
+                        firstFixups[label] = next;
+                    else
+                        nextFixups[previous] = next;
+
+                    fixupLocations[fixup] = NONE;
+                    nextFixups[fixup] = freeFixups;
+                    freeFixups = fixup;
+                    pendingFixups--;
+                } else {
+                    previous = fixup;
+                }
+                fixup = next;
+            }
+        }
+    }
+
+    /**
+     * @return number of references to labels which are not assigned yet
+     */
+    public int pendingFixups() {
+        return pendingFixups;
+    }
+}
@@ -0,0 +1,155 @@
+package yapl.impl;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A natural loop of a {@link ControlFlowGraph}: the header, which dominates all blocks of the loop,
+ * and the blocks from which the header is reached again without leaving the loop.
+ */
+public class Loop {
+
+    public final BasicBlock header;
+
+    /**
+     * blocks of the loop, including the header, in the order of the layout
+     */
+    public final Set<BasicBlock> blocks;
+
+    /**
+     * blocks executed in every iteration, which dominate all sources of back edges to the header
+     */
+    public final Set<BasicBlock> everyIteration;
+
+    private Loop(BasicBlock header, Set<BasicBlock> blocks, Set<BasicBlock> everyIteration) {
+        this.header = header;
+        this.blocks = blocks;
+        this.everyIteration = everyIteration;
+    }
+
+    public boolean contains(BasicBlock block) {
+        return blocks.contains(block);
+    }
+
+    /**
+     * @return the natural loops of the graph, inner loops before the loops containing them
+     */
+    public static List<Loop> find(ControlFlowGraph graph) {
+        List<BasicBlock> blocks = graph.blocks;
+        BitSet[] dominators = dominators(graph);
+
+        List<Loop> loops = new ArrayList<>();
+        for (int h = 0; h < blocks.size(); h++) {
+            BasicBlock header = blocks.get(h);
+
+            // sources of back edges, which are dominated by the header
+            Deque<BasicBlock> worklist = new ArrayDeque<>();
+            BitSet everyIteration = new BitSet();
+            everyIteration.set(0, blocks.size());
+            for (BasicBlock predecessor : header.predecessors) {
+                BitSet dominated = dominators[blocks.indexOf(predecessor)];
+                if (dominated != null && dominated.get(h)) {
+                    worklist.add(predecessor);
+                    everyIteration.and(dominated);
+                }
+            }
+            if (worklist.isEmpty())
+                continue;
+
+            BitSet body = new BitSet();
+            body.set(h);
+            while (!worklist.isEmpty()) {
+                BasicBlock block = worklist.poll();
+                int index = blocks.indexOf(block);
+                if (body.get(index))
+                    continue;
+
+                body.set(index);
+                for (BasicBlock predecessor : block.predecessors)
+                    if (dominators[blocks.indexOf(predecessor)] != null)
+                        worklist.add(predecessor);
+            }
+
+            Set<BasicBlock> loopBlocks = new LinkedHashSet<>(), everyIterationBlocks = new LinkedHashSet<>();
+            body.stream().forEach(index -> loopBlocks.add(blocks.get(index)));
+            everyIteration.stream().forEach(index -> everyIterationBlocks.add(blocks.get(index)));
+            loops.add(new Loop(header, loopBlocks, everyIterationBlocks));
+        }
+
+        loops.sort(Comparator.comparingInt(loop -> loop.blocks.size()));
+        return loops;
+    }
+
+    /**
+     * @return for every block the indices of the blocks dominating it, null for unreachable blocks
+     */
+    private static BitSet[] dominators(ControlFlowGraph graph) {
+        List<BasicBlock> blocks = graph.blocks;
+        int n = blocks.size();
+
+        BitSet[] dominators = new BitSet[n];
+        dominators[0] = new BitSet();
+        dominators[0].set(0);
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int i = 1; i < n; i++) {
+                BitSet dominated = null;
+                for (BasicBlock predecessor : blocks.get(i).predecessors) {
+                    BitSet other = dominators[blocks.indexOf(predecessor)];
+                    if (other == null)
+                        continue;
+
+                    if (dominated == null)
+                        dominated = (BitSet) other.clone();
+                    else
+                        dominated.and(other);
+                }
+                if (dominated == null)
+                    continue;
+
+                dominated.set(i);
+                if (!dominated.equals(dominators[i])) {
+                    dominators[i] = dominated;
+                    changed = true;
+                }
+            }
+        }
+        return dominators;
+    }
+
+    /**
+     * Inserts an empty block before the header, through which the loop is entered from outside.
+     * The loop must not be entered from a block falling through into the header from inside the loop,
+     * and the expression stack must be empty at the header.
+     *
+     * @return the new pre-header, null if the loop does not have this form
+     */
+    public BasicBlock insertPreheader(ControlFlowGraph graph) {
+        int index = graph.blocks.indexOf(header);
+        BasicBlock previous = graph.blocks.get(index - 1);
+        if (header.stackDepth != 0 || contains(previous) && previous.fallsThrough())
+            return null;
+
+        BasicBlock preheader = graph.newBlock();
+        graph.blocks.add(index, preheader);
+
+        for (BasicBlock predecessor : new ArrayList<>(header.predecessors)) {
+            IrInstruction branch = predecessor.branch();
+            if (contains(predecessor) || branch == null || branch.target != header)
+                continue;
+
+            predecessor.instructions.set(predecessor.instructions.size() - 1, branch.withTarget(preheader));
+        }
+
+        graph.update();
+        return preheader;
+    }
+}
@@ -0,0 +1,239 @@
+package yapl.impl;
+
+import yapl.interfaces.MemoryRegion;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Moves loop-invariant computations into a pre-header of the loop, where their value is stored in a new
+ * temporary word of the frame; the computation in the loop is replaced by a load of the temporary.
+ * <p>
+ * A computation is the code of a complete expression value of at least two instructions. It is invariant if
+ * it only consists of pure operations and of loads of words which are not stored in the loop. Static data
+ * is only invariant in loops without calls, heap words and array elements also require a loop without heap
+ * stores. Computations which may trap (heap access, array length, division) are only moved from the header
+ * of the loop, which is executed at least once, if nothing with a side effect precedes them there.
+ * Calls and stores always stay in the loop.
+ */
+public class LoopInvariantCodeMotion implements IrPass {
+
+    /**
+     * instructions [start, end] of a block computing a single value
+     */
+    private static class Value {
+        final int start, end;
+        final boolean invariant;
+
+        Value(int start, int end, boolean invariant) {
+            this.start = start;
+            this.end = end;
+            this.invariant = invariant;
+        }
+    }
+
+    /**
+     * what the instructions of the loop being optimized write
+     */
+    private final BitSet storedWords = new BitSet(), allocatedWords = new BitSet();
+    private final Set<Integer> storedStatics = new HashSet<>();
+    private boolean heapStores, calls;
+
+    @Override
+    public String name() {
+        return "licm";
+    }
+
+    @Override
+    public void run(ControlFlowGraph graph) {
+        Set<BasicBlock> optimized = new HashSet<>();
+
+        // inner loops first; the pre-header of an inner loop becomes part of the outer loop
+        boolean found = true;
+        while (found) {
+            found = false;
+            for (Loop loop : Loop.find(graph)) {
+                if (optimized.add(loop.header)) {
+                    optimize(graph, loop);
+                    found = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    private void optimize(ControlFlowGraph graph, Loop loop) {
+        storedWords.clear();
+        allocatedWords.clear();
+        storedStatics.clear();
+        heapStores = calls = false;
+
+        for (BasicBlock block : loop.blocks) {
+            for (IrInstruction instruction : block.instructions) {
+                switch (instruction.op) {
+                    case STORE_WORD:
+                        if (instruction.region == MemoryRegion.STACK)
+                            storedWords.set(instruction.operand);
+                        else if (instruction.region == MemoryRegion.STATIC)
+                            storedStatics.add(instruction.operand);
+                        else
+                            heapStores = true;
+                        break;
+                    case STORE_ARRAY_ELEMENT:
+                        heapStores = true;
+                        break;
+                    case CALL:
+                        calls = true;
+                        break;
+                    case ALLOC_STACK:
+                    case FREE_STACK:
+                        allocatedWords.set(instruction.operand, instruction.operand + instruction.words);
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+
+        Map<BasicBlock, List<Value>> candidates = new HashMap<>();
+        for (BasicBlock block : loop.blocks) {
+            List<Value> values = invariantValues(block, block == loop.header);
+            if (!values.isEmpty())
+                candidates.put(block, values);
+        }
+        if (candidates.isEmpty() || !graph.hasRoomForTemporary())
+            return;
+
+        BasicBlock preheader = loop.insertPreheader(graph);
+        if (preheader == null)
+            return;
+
+        // equal computations share their temporary
+        Map<String, Integer> temporaries = new HashMap<>();
+        for (BasicBlock block : loop.blocks) {
+            List<Value> values = candidates.get(block);
+            if (values == null)
+                continue;
+
+            for (Value value : values) {
+                List<IrInstruction> computation = block.instructions.subList(value.start, value.end + 1);
+                String key = computation.toString();
+
+                Integer temporary = temporaries.get(key);
+                if (temporary == null) {
+                    if (!graph.hasRoomForTemporary())
+                        continue;
+
+                    temporary = graph.newTemporary();
+                    temporaries.put(key, temporary);
+                    preheader.instructions.addAll(computation);
+                    preheader.instructions.add(IrInstruction.storeWord(MemoryRegion.STACK, temporary));
+                }
+
+                computation.clear();
+                computation.add(IrInstruction.loadWord(MemoryRegion.STACK, temporary));
+            }
+        }
+
+        graph.update();
+    }
+
+    /**
+     * @param isHeader whether the block is the header of the loop
+     * @return the maximal invariant computations of the block, last one first
+     */
+    private List<Value> invariantValues(BasicBlock block, boolean isHeader) {
+        List<Value> candidates = new ArrayList<>();
+        if (block.stackDepth == IrInstruction.UNKNOWN)
+            return candidates;
+
+        List<Value> stack = new ArrayList<>();
+        for (int i = 0; i < block.stackDepth; i++)
+            stack.add(new Value(-1, -1, false));
+
+        boolean sideEffects = false;
+        List<IrInstruction> instructions = block.instructions;
+        for (int i = 0; i < instructions.size(); i++) {
+            IrInstruction instruction = instructions.get(i);
+            if (instruction.pops == IrInstruction.UNKNOWN || instruction.pushes == IrInstruction.UNKNOWN) {
+                stack.forEach(value -> addCandidate(candidates, value));
+                return candidates;
+            }
+
+            List<Value> operands = new ArrayList<>(stack.subList(stack.size() - instruction.pops, stack.size()));
+            stack.subList(stack.size() - instruction.pops, stack.size()).clear();
+
+            boolean invariant = instruction.pushes == 1 && isInvariant(instruction, isHeader && !sideEffects);
+            int next = i;
+            for (int k = operands.size() - 1; k >= 0 && invariant; k--) {
+                Value operand = operands.get(k);
+                invariant = operand.invariant && operand.end == next - 1;
+                next = operand.start;
+            }
+
+            if (invariant) {
+                stack.add(new Value(operands.isEmpty() ? i : operands.get(0).start, i, true));
+            } else {
+                operands.forEach(value -> addCandidate(candidates, value));
+                if (instruction.pushes == 1)
+                    stack.add(new Value(i, i, false));
+            }
+
+            sideEffects |= hasSideEffects(instruction);
+        }
+
+        stack.forEach(value -> addCandidate(candidates, value));
+
+        candidates.sort((a, b) -> Integer.compare(b.start, a.start));
+        return candidates;
+    }
+
+    private static void addCandidate(List<Value> candidates, Value value) {
+        // moving a single instruction would only replace it by a load
+        if (value.invariant && value.end > value.start)
+            candidates.add(value);
+    }
+
+    /**
+     * @param mayTrap whether instructions which may trap can be moved
+     */
+    private boolean isInvariant(IrInstruction instruction, boolean mayTrap) {
+        switch (instruction.op) {
+            case LOAD_WORD:
+                if (instruction.region == MemoryRegion.STACK)
+                    return !storedWords.get(instruction.operand) && !allocatedWords.get(instruction.operand);
+                if (instruction.region == MemoryRegion.STATIC)
+                    return !calls && !storedStatics.contains(instruction.operand);
+                return mayTrap && !calls && !heapStores;
+            case LOAD_ARRAY_ELEMENT:
+                return mayTrap && !calls && !heapStores;
+            case ARRAY_LENGTH:
+            case DIV:
+            case MOD:
+                return mayTrap;
+            default:
+                return instruction.op.isPure();
+        }
+    }
+
+    private static boolean hasSideEffects(IrInstruction instruction) {
+        switch (instruction.op) {
+            case LOAD_WORD:
+            case LOAD_ARRAY_ELEMENT:
+            case ARRAY_LENGTH:
+            case DIV:
+            case MOD:
+            case BRANCH_IF_VALUE:
+            case BRANCH_IF_COMPARISON:
+            case JUMP:
+                return false;
+            default:
+                return !instruction.op.isPure();
+        }
+    }
+}
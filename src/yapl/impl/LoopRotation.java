@@ -0,0 +1,124 @@
+package yapl.impl;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Rotates loops testing their condition at the top: the blocks of the condition are copied to the
+ * bottom of the loop, replacing the jump back to the header, and the last branch of the copy is negated
+ * to branch back to the body. The condition at the top is then only executed on entry, and every
+ * iteration saves a jump.
+ * <p>
+ * The condition consists of the header and the blocks following it which end with a conditional branch,
+ * up to the last one leaving the loop, like the code of a short-circuit <code>And</code> or <code>Or</code>.
+ * The loop must be left to the block after the jump back, so the negated branch can fall through to it.
+ */
+public class LoopRotation implements IrPass {
+
+    /**
+     * maximal number of instructions of a condition which is copied
+     */
+    private static final int MAX_CONDITION_SIZE = 24;
+
+    @Override
+    public String name() {
+        return "loop-rotation";
+    }
+
+    @Override
+    public void run(ControlFlowGraph graph) {
+        Set<BasicBlock> rotated = new HashSet<>();
+
+        boolean found = true;
+        while (found) {
+            found = false;
+            for (Loop loop : Loop.find(graph)) {
+                if (rotated.add(loop.header)) {
+                    rotate(graph, loop);
+                    found = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    private static void rotate(ControlFlowGraph graph, Loop loop) {
+        if (loop.header.stackDepth != 0)
+            return;
+
+        List<BasicBlock> condition = condition(graph, loop);
+        if (condition.isEmpty())
+            return;
+
+        BasicBlock last = condition.get(condition.size() - 1);
+        BasicBlock body = graph.next(last), exit = last.branch().target;
+        if (!loop.contains(body))
+            return;
+
+        BasicBlock latch = null;
+        for (BasicBlock predecessor : loop.header.predecessors) {
+            IrInstruction branch = predecessor.branch();
+            if (loop.contains(predecessor) && branch != null && branch.op == IrOp.JUMP && graph.next(predecessor) == exit)
+                latch = predecessor;
+        }
+        if (latch == null)
+            return;
+
+        List<BasicBlock> copies = new ArrayList<>();
+        for (int i = 0; i < condition.size(); i++)
+            copies.add(graph.newBlock());
+
+        for (int i = 0; i < condition.size(); i++) {
+            List<IrInstruction> instructions = condition.get(i).instructions;
+            List<IrInstruction> copy = copies.get(i).instructions;
+            for (int k = 0; k < instructions.size() - 1; k++)
+                copy.add(instructions.get(k).copy());
+
+            // branches within the condition stay within the copy
+            IrInstruction branch = instructions.get(instructions.size() - 1);
+            int target = condition.indexOf(branch.target);
+            if (i == condition.size() - 1)
+                copy.add(branch.negated(body));
+            else
+                copy.add(branch.withTarget(target > 0 ? copies.get(target) : branch.target));
+        }
+
+        latch.instructions.remove(latch.instructions.size() - 1);
+        graph.blocks.addAll(graph.blocks.indexOf(latch) + 1, copies);
+        graph.update();
+    }
+
+    /**
+     * @return the blocks of the condition of the loop, empty if it cannot be copied
+     */
+    private static List<BasicBlock> condition(ControlFlowGraph graph, Loop loop) {
+        List<BasicBlock> condition = new ArrayList<>();
+        int length = 0, size = 0;
+
+        for (int i = graph.blocks.indexOf(loop.header); i < graph.blocks.size(); i++) {
+            BasicBlock block = graph.blocks.get(i);
+            IrInstruction branch = block.branch();
+            if (!loop.contains(block) || branch == null || !branch.op.isConditionalBranch())
+                break;
+
+            size += block.instructions.size();
+            if (size > MAX_CONDITION_SIZE || allocatesStack(block))
+                break;
+
+            condition.add(block);
+            if (!loop.contains(branch.target))
+                length = condition.size();
+        }
+
+        return condition.subList(0, length);
+    }
+
+    private static boolean allocatesStack(BasicBlock block) {
+        for (IrInstruction instruction : block.instructions)
+            if (instruction.op == IrOp.ALLOC_STACK || instruction.op == IrOp.FREE_STACK)
+                return true;
+        return false;
+    }
+}
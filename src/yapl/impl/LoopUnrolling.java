@@ -0,0 +1,348 @@
+package yapl.impl;
+
+import yapl.interfaces.Comparison;
+import yapl.interfaces.MemoryRegion;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntSupplier;
+
+/**
+ * Unrolls counted loops <code>While i &lt; n Do ... i := i + 1; EndWhile</code>, whose bound n is a constant
+ * or a non-negative word which does not change within the loop, like a temporary holding <code>#a</code>.
+ * <ul>
+ *     <li>If i starts with a constant and n is a constant, a loop of a few iterations is replaced by a copy
+ *     of its body per iteration.</li>
+ *     <li>Otherwise the body is copied factor times into a loop which only tests i &lt; n - (factor - 1)
+ *     once for all copies. The original loop follows as remainder loop, executing the last iterations.</li>
+ * </ul>
+ * Only innermost loops are unrolled. The copies of a body which is entered only from the header are merged
+ * into one block, so common subexpression elimination works across iterations. Loops with calls are
+ * kept, as their call dominates the saved test, and inlining makes their size unknown.
+ * <p>
+ * The growth of the code is limited per loop and for the whole program, and no loop is unrolled if the
+ * code of the procedure would no longer end within the near addresses of {@link ProgramLayout}.
+ */
+public class LoopUnrolling implements IrPass {
+
+    public static final int DEFAULT_FACTOR = 4;
+
+    /**
+     * maximal number of instructions of the copies of a body
+     */
+    private static final int MAX_UNROLLED_SIZE = 128;
+
+    /**
+     * maximal number of iterations of a loop which is unrolled completely
+     */
+    private static final int MAX_FULL_TRIP_COUNT = 16;
+
+    /**
+     * estimated number of bytes per instruction, which is the size of a constant outside of -1..5
+     */
+    private static final int INSTRUCTION_BYTES = 5;
+
+    /**
+     * number of bytes which unrolling may add to the code of the program
+     */
+    private static final int MAX_GROWTH = 8192;
+
+    private final int factor;
+
+    /**
+     * size of the code emitted so far, which is the address of the procedure
+     */
+    private final IntSupplier codeSize;
+
+    private int growth = 0;
+
+    /**
+     * @param factor number of copies of the body of a loop, less than 2 disables unrolling
+     */
+    public LoopUnrolling(int factor, IntSupplier codeSize) {
+        this.factor = factor;
+        this.codeSize = codeSize;
+    }
+
+    @Override
+    public String name() {
+        return "loop-unrolling";
+    }
+
+    @Override
+    public void run(ControlFlowGraph graph) {
+        if (factor < 2)
+            return;
+
+        BitSet nonNegativeWords = StrengthReduction.nonNegativeWords(graph);
+        Set<BasicBlock> unrolled = new HashSet<>();
+
+        boolean found = true;
+        while (found) {
+            found = false;
+            List<Loop> loops = Loop.find(graph);
+            for (Loop loop : loops) {
+                if (unrolled.add(loop.header)) {
+                    if (isInnermost(loop, loops))
+                        unroll(graph, loop, nonNegativeWords, unrolled);
+                    found = true;
+                    break;
+                }
+            }
+        }
+    }
+
+    private static boolean isInnermost(Loop loop, List<Loop> loops) {
+        for (Loop other : loops)
+            if (other != loop && loop.contains(other.header))
+                return false;
+        return true;
+    }
+
+    /**
+     * @param unrolled receives the header of the unrolled loop
+     */
+    private void unroll(ControlFlowGraph graph, Loop loop, BitSet nonNegativeWords, Set<BasicBlock> unrolled) {
+        BasicBlock header = loop.header;
+        List<IrInstruction> test = header.instructions;
+        if (header.stackDepth != 0 || test.size() != 3)
+            return;
+
+        IrInstruction counter = test.get(0), bound = test.get(1), branch = test.get(2);
+        if (counter.op != IrOp.LOAD_WORD || counter.region == MemoryRegion.HEAP
+                || branch.op != IrOp.BRANCH_IF_COMPARISON || loop.contains(branch.target)
+                || branch.comparison != Comparison.GE && branch.comparison != Comparison.GT)
+            return;
+
+        boolean constantBound = bound.op == IrOp.LOAD_CONST;
+        if (!constantBound && !(bound.op == IrOp.LOAD_WORD && bound.region == MemoryRegion.STACK
+                && nonNegativeWords.get(bound.operand) && bound.operand != counter.operand))
+            return;
+
+        List<BasicBlock> body = body(graph, loop);
+        if (body == null || !isCounted(loop, body, counter, bound))
+            return;
+
+        int bodySize = 0;
+        for (BasicBlock block : body)
+            bodySize += block.instructions.size();
+        BasicBlock latch = body.get(body.size() - 1), exit = branch.target;
+
+        // (i < n) = (i >= n) is false for n - i iterations, (i <= n) one more
+        Integer start = constantBound ? initialValue(graph, loop, counter) : null;
+        if (start != null) {
+            long tripCount = Math.max(0, (long) bound.operand - start + (branch.comparison == Comparison.GT ? 1 : 0));
+            if (tripCount <= MAX_FULL_TRIP_COUNT && tripCount * bodySize <= MAX_UNROLLED_SIZE
+                    && fits(graph, (int) tripCount * bodySize - bodySize - test.size())) {
+                List<BasicBlock> copies = copies(graph, body, (int) tripCount);
+                if (graph.next(latch) != exit) {
+                    if (copies.isEmpty())
+                        copies.add(graph.newBlock());
+                    copies.get(copies.size() - 1).instructions.add(latch.branch().withTarget(exit));
+                }
+
+                int index = graph.blocks.indexOf(header);
+                graph.blocks.remove(header);
+                graph.blocks.removeAll(body);
+                graph.blocks.addAll(index, copies);
+                graph.update();
+                return;
+            }
+        }
+
+        int copies = Math.min(factor, MAX_UNROLLED_SIZE / bodySize);
+        long limit = (long) bound.operand - (copies - 1);
+        if (copies < 2 || constantBound && limit < Integer.MIN_VALUE || !constantBound && !graph.hasRoomForTemporary()
+                || !fits(graph, copies * bodySize + test.size() + 4))
+            return;
+
+        BasicBlock preheader = loop.insertPreheader(graph);
+        if (preheader == null)
+            return;
+
+        // the copies are only entered if all of them would pass the test, n - (copies - 1) does not overflow for n >= 0
+        IrInstruction limitInstruction;
+        if (constantBound) {
+            limitInstruction = new IrInstruction(IrOp.LOAD_CONST, (int) limit);
+        } else {
+            int temporary = graph.newTemporary();
+            preheader.instructions.add(bound.copy());
+            preheader.instructions.add(new IrInstruction(IrOp.LOAD_CONST, copies - 1));
+            preheader.instructions.add(new IrInstruction(IrOp.SUB));
+            preheader.instructions.add(IrInstruction.storeWord(MemoryRegion.STACK, temporary));
+            limitInstruction = IrInstruction.loadWord(MemoryRegion.STACK, temporary);
+        }
+
+        BasicBlock unrolledHeader = graph.newBlock();
+        unrolledHeader.instructions.add(counter.copy());
+        unrolledHeader.instructions.add(limitInstruction);
+        unrolledHeader.instructions.add(branch.withTarget(header));
+
+        List<BasicBlock> blocks = copies(graph, body, copies);
+        blocks.get(blocks.size() - 1).instructions.add(latch.branch().withTarget(unrolledHeader));
+        blocks.add(0, unrolledHeader);
+
+        graph.blocks.addAll(graph.blocks.indexOf(header), blocks);
+        graph.update();
+        unrolled.add(unrolledHeader);
+    }
+
+    /**
+     * @return the blocks of the loop after the header, which must follow it in the layout and end with
+     * the only jump back to the header, null if the loop does not have this form
+     */
+    private static List<BasicBlock> body(ControlFlowGraph graph, Loop loop) {
+        int index = graph.blocks.indexOf(loop.header);
+        if (index + loop.blocks.size() > graph.blocks.size())
+            return null;
+
+        List<BasicBlock> body = new ArrayList<>(graph.blocks.subList(index + 1, index + loop.blocks.size()));
+        if (body.isEmpty() || !loop.blocks.containsAll(body))
+            return null;
+
+        BasicBlock latch = body.get(body.size() - 1);
+        IrInstruction jump = latch.branch();
+        if (jump == null || jump.op != IrOp.JUMP || jump.target != loop.header)
+            return null;
+
+        for (BasicBlock predecessor : loop.header.predecessors)
+            if (loop.contains(predecessor) && predecessor != latch)
+                return null;
+        return body;
+    }
+
+    /**
+     * @return whether the body adds 1 to the counter in every iteration and does not change it otherwise,
+     * does not change the bound, and does not call procedures or allocate words of the frame
+     */
+    private static boolean isCounted(Loop loop, List<BasicBlock> body, IrInstruction counter, IrInstruction bound) {
+        int increments = 0;
+        for (BasicBlock block : body) {
+            List<IrInstruction> instructions = block.instructions;
+            for (int i = 0; i < instructions.size(); i++) {
+                IrInstruction instruction = instructions.get(i);
+                switch (instruction.op) {
+                    case CALL:
+                    case ALLOC_STACK:
+                    case FREE_STACK:
+                        return false;
+                    case STORE_WORD:
+                        if (isWord(instruction, bound))
+                            return false;
+                        if (isWord(instruction, counter)) {
+                            if (!loop.everyIteration.contains(block) || !isIncrement(instructions, i, counter))
+                                return false;
+                            increments++;
+                        }
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+        return increments == 1;
+    }
+
+    /**
+     * @return whether the instructions before the store at index compute <code>counter + 1</code>
+     */
+    private static boolean isIncrement(List<IrInstruction> instructions, int index, IrInstruction counter) {
+        if (index < 3 || instructions.get(index - 1).op != IrOp.ADD)
+            return false;
+
+        IrInstruction a = instructions.get(index - 3), b = instructions.get(index - 2);
+        return a.op == IrOp.LOAD_WORD && isWord(a, counter) && b.op == IrOp.LOAD_CONST && b.operand == 1
+                || a.op == IrOp.LOAD_CONST && a.operand == 1 && b.op == IrOp.LOAD_WORD && isWord(b, counter);
+    }
+
+    private static boolean isWord(IrInstruction instruction, IrInstruction load) {
+        return load.op == IrOp.LOAD_WORD && instruction.region == load.region && instruction.operand == load.operand;
+    }
+
+    /**
+     * @return the constant stored into the counter by the straight code before the loop, null if it is not known
+     */
+    private static Integer initialValue(ControlFlowGraph graph, Loop loop, IrInstruction counter) {
+        BasicBlock block = null;
+        for (BasicBlock predecessor : loop.header.predecessors) {
+            if (loop.contains(predecessor))
+                continue;
+            if (block != null)
+                return null;
+            block = predecessor;
+        }
+
+        while (block != null) {
+            List<IrInstruction> instructions = block.instructions;
+            for (int i = instructions.size() - 1; i >= 0; i--) {
+                IrInstruction instruction = instructions.get(i);
+                if (instruction.op == IrOp.STORE_WORD && isWord(instruction, counter))
+                    return i > 0 && instructions.get(i - 1).op == IrOp.LOAD_CONST ? instructions.get(i - 1).operand : null;
+                if (instruction.op == IrOp.CALL && counter.region == MemoryRegion.STATIC || instruction.op.isBranch())
+                    return null;
+                // a store before the allocation of the counter was to another variable
+                if ((instruction.op == IrOp.ALLOC_STACK || instruction.op == IrOp.FREE_STACK) && counter.region == MemoryRegion.STACK
+                        && counter.operand >= instruction.operand && counter.operand < instruction.operand + instruction.words)
+                    return null;
+            }
+
+            BasicBlock previous = block.predecessors.size() == 1 ? block.predecessors.get(0) : null;
+            block = previous != null && graph.next(previous) == block && previous.branch() == null ? previous : null;
+        }
+        return null;
+    }
+
+    /**
+     * @return the given number of copies of the body, one after the other, without the jump back to the header.
+     * Branches within the body stay within its copy.
+     */
+    private static List<BasicBlock> copies(ControlFlowGraph graph, List<BasicBlock> body, int count) {
+        // the first block of the body is only entered from the header, so its copies continue the previous copy
+        boolean merged = body.get(0).predecessors.size() == 1;
+
+        List<BasicBlock> copies = new ArrayList<>();
+        for (int k = 0; k < count; k++) {
+            Map<BasicBlock, BasicBlock> blocks = new HashMap<>();
+            for (int i = 0; i < body.size(); i++)
+                blocks.put(body.get(i), i == 0 && k > 0 && merged ? copies.get(copies.size() - 1) : graph.newBlock());
+
+            for (int i = 0; i < body.size(); i++) {
+                BasicBlock copy = blocks.get(body.get(i));
+                if (copies.isEmpty() || copies.get(copies.size() - 1) != copy)
+                    copies.add(copy);
+
+                List<IrInstruction> instructions = body.get(i).instructions;
+                int end = i == body.size() - 1 ? instructions.size() - 1 : instructions.size();
+                for (int j = 0; j < end; j++) {
+                    IrInstruction instruction = instructions.get(j);
+                    BasicBlock target = instruction.target != null ? blocks.get(instruction.target) : null;
+                    copy.instructions.add(target != null ? instruction.withTarget(target) : instruction.copy());
+                }
+            }
+        }
+        return copies;
+    }
+
+    /**
+     * Accounts for the instructions added by unrolling a loop.
+     *
+     * @return whether they are within the budget of the program, and the procedure still ends at a near address
+     */
+    private boolean fits(ControlFlowGraph graph, int instructions) {
+        int size = 0;
+        for (BasicBlock block : graph.blocks)
+            size += block.instructions.size();
+
+        int bytes = instructions * INSTRUCTION_BYTES;
+        if (growth + bytes > MAX_GROWTH || codeSize.getAsInt() + (size + instructions) * INSTRUCTION_BYTES > ProgramLayout.MAX_NEAR_ADDRESS)
+            return false;
+
+        growth += Math.max(bytes, 0);
+        return true;
+    }
+}
@@ -0,0 +1,96 @@
+package yapl.impl;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Runs the optimization passes of an optimization level on the control flow graph of every procedure,
+ * and measures the time spent per pass (and for building and lowering the graphs).
+ * <ul>
+ *     <li>-O0: no intermediate representation, the code generator emits directly to the backend</li>
+ *     <li>-O1: control flow cleanup</li>
+ *     <li>-O2: also strength reduction, loop-invariant code motion, loop unrolling, loop rotation and common
+ *     subexpression elimination</li>
+ * </ul>
+ */
+public class PassManager {
+
+    public static final int MAX_LEVEL = 2;
+
+    private final List<IrPass> passes = new ArrayList<>();
+
+    /**
+     * accumulated nanoseconds and number of runs, by pass or stage name, in order of the first run
+     */
+    private final Map<String, long[]> timings = new LinkedHashMap<>();
+
+    /**
+     * @param unrollFactor number of copies of the body of an unrolled loop, see {@link LoopUnrolling}
+     * @param codeSize     size of the code emitted so far, which limits the growth of the code
+     */
+    public PassManager(int level, int unrollFactor, IntSupplier codeSize) {
+        if (level < 0 || level > MAX_LEVEL)
+            throw new IllegalArgumentException("Optimization level " + level + " is not in 0.." + MAX_LEVEL + ".");
+
+        if (level >= 1) {
+            passes.add(new UnreachableBlocks());
+            passes.add(new JumpThreading());
+        }
+        if (level >= 2) {
+            passes.add(new StrengthReduction());
+            passes.add(new LoopInvariantCodeMotion());
+            passes.add(new LoopUnrolling(unrollFactor, codeSize));
+            passes.add(new LoopRotation());
+            passes.add(new CommonSubexpressions());
+        }
+    }
+
+    public List<IrPass> passes() {
+        return passes;
+    }
+
+    /**
+     * Runs all passes on the graph of a procedure.
+     */
+    public void run(ControlFlowGraph graph) {
+        for (IrPass pass : passes)
+            time(pass.name(), () -> {
+                pass.run(graph);
+                return null;
+            });
+    }
+
+    /**
+     * Runs a stage of the compilation and adds its time to the timings.
+     */
+    public <T> T time(String name, Supplier<T> stage) {
+        long start = System.nanoTime();
+        try {
+            return stage.get();
+        } finally {
+            long[] timing = timings.computeIfAbsent(name, n -> new long[2]);
+            timing[0] += System.nanoTime() - start;
+            timing[1]++;
+        }
+    }
+
+    /**
+     * Prints the time per pass and the total.
+     */
+    public void printTimings(PrintStream out) {
+        long total = timings.values().stream().mapToLong(timing -> timing[0]).sum();
+        int width = timings.keySet().stream().mapToInt(String::length).max().orElse(0);
+
+        for (Map.Entry<String, long[]> entry : timings.entrySet()) {
+            long[] timing = entry.getValue();
+            out.printf("%-" + width + "s %9.3f ms %5.1f%% %6d runs%n", entry.getKey(), timing[0] / 1e6,
+                    total == 0 ? 0 : 100.0 * timing[0] / total, timing[1]);
+        }
+        out.printf("%-" + width + "s %9.3f ms%n", "total", total / 1e6);
+    }
+}
@@ -0,0 +1,182 @@
+package yapl.impl;
+
+import static yapl.impl.Instruction.*;
+
+/**
+ * Peephole optimizer for the code of a single procedure.
+ * <ul>
+ *     <li>load n / store n with n in [0;3] are replaced by their short forms load0..3 / store0..3</li>
+ *     <li>neg; const1; add; const0; jeq T (branching if NOT x is false) is replaced by const0; jne T</li>
+ *     <li>jumps to a jmp are redirected to the final target of the jmp chain</li>
+ *     <li>unreachable instructions are removed, control only enters at the first instruction</li>
+ *     <li>jumps to the directly following instruction are removed</li>
+ *     <li>jmp to an exit; return sequence is replaced by exit; return</li>
+ * </ul>
+ * Rewritten sequences must not contain jump targets, except at their first instruction.
+ */
+public class Peephole {
+
+    private static final int NONE = -1;
+
+    private static final Instruction[] SHORT_LOADS = {load0, load1, load2, load3};
+    private static final Instruction[] SHORT_STORES = {store0, store1, store2, store3};
+
+    private Peephole() {
+    }
+
+    public static void optimize(ProcedureCode code) {
+        useShortForms(code);
+        foldNegatedBranches(code);
+        threadJumps(code);
+        removeUnreachable(code);
+        removeJumpsToNext(code);
+        // must be last, the inserted return is not visible to other passes
+        inlineExits(code);
+    }
+
+    private static void useShortForms(ProcedureCode code) {
+        for (int i = 0; i < code.size(); i++) {
+            if (code.isDeleted(i))
+                continue;
+
+            int operand = code.operand(i);
+            if (operand < 0 || operand > 3)
+                continue;
+
+            if (code.instruction(i) == load)
+                code.replace(i, SHORT_LOADS[operand], 0);
+            else if (code.instruction(i) == store)
+                code.replace(i, SHORT_STORES[operand], 0);
+        }
+    }
+
+    /**
+     * neg; const1; add; const0; jeq T -> const0; jne T
+     */
+    private static void foldNegatedBranches(ProcedureCode code) {
+        Instruction[] pattern = {neg, const1, add, const0, jeq};
+        int[] matched = new int[pattern.length];
+
+        for (int i = 0; i < code.size(); i++) {
+            if (!matches(code, i, pattern, matched))
+                continue;
+
+            code.replace(matched[0], const0, 0);
+            code.delete(matched[1]);
+            code.delete(matched[2]);
+            code.delete(matched[3]);
+            code.replace(matched[4], jne, code.operand(matched[4]));
+        }
+    }
+
+    /**
+     * @param matched receives the indices of the matched instructions
+     * @return whether the instructions starting at index match the pattern,
+     * without any jump target after the first instruction
+     */
+    private static boolean matches(ProcedureCode code, int index, Instruction[] pattern, int[] matched) {
+        if (code.isDeleted(index))
+            return false;
+
+        for (int j = 0; j < pattern.length; j++) {
+            if (index < 0 || code.instruction(index) != pattern[j] || (j > 0 && code.isReferenced(index)))
+                return false;
+
+            matched[j] = index;
+            index = code.next(index);
+        }
+        return true;
+    }
+
+    private static void removeJumpsToNext(ProcedureCode code) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+
+            for (int i = 0; i < code.size(); i++) {
+                if (code.isDeleted(i) || code.instruction(i) != jmp)
+                    continue;
+
+                int target = code.target(i);
+                if (target != NONE && target == code.next(i)) {
+                    code.delete(i);
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * jXX L1 ... L1: jmp L2 -> jXX L2
+     */
+    private static void threadJumps(ProcedureCode code) {
+        for (int i = 0; i < code.size(); i++) {
+            if (code.isDeleted(i) || !code.instruction(i).isJump())
+                continue;
+
+            int target = code.target(i), finalTarget = target;
+            // a chain longer than the procedure is a cycle
+            for (int steps = 0; finalTarget != NONE && code.instruction(finalTarget) == jmp && steps < code.size(); steps++) {
+                int next = code.target(finalTarget);
+                if (next == NONE || next == finalTarget)
+                    break;
+                finalTarget = next;
+            }
+
+            if (finalTarget != target)
+                code.retarget(i, finalTarget);
+        }
+    }
+
+    private static void removeUnreachable(ProcedureCode code) {
+        int first = code.isDeleted(0) ? code.next(0) : 0;
+        if (first == NONE)
+            return;
+
+        boolean[] reachable = new boolean[code.size()];
+        int[] worklist = new int[code.size()];
+        int n = 0;
+
+        reachable[first] = true;
+        worklist[n++] = first;
+        while (n > 0) {
+            int i = worklist[--n];
+            Instruction instruction = code.instruction(i);
+
+            int target = instruction.isJump() ? code.target(i) : NONE;
+            int next = instruction == jmp || instruction == return_ ? NONE : code.next(i);
+
+            for (int successor : new int[]{target, next}) {
+                if (successor != NONE && !reachable[successor]) {
+                    reachable[successor] = true;
+                    worklist[n++] = successor;
+                }
+            }
+        }
+
+        for (int i = 0; i < code.size(); i++)
+            if (!reachable[i])
+                code.delete(i);
+    }
+
+    /**
+     * jmp L ... L: exit; return -> exit; return
+     */
+    private static void inlineExits(ProcedureCode code) {
+        for (int i = 0; i < code.size(); i++) {
+            if (code.isDeleted(i) || code.instruction(i) != jmp)
+                continue;
+
+            int target = code.target(i);
+            if (target == NONE || code.instruction(target) != exit)
+                continue;
+
+            int next = code.next(target);
+            if (next == NONE || code.instruction(next) != return_)
+                continue;
+
+            code.replace(i, exit, 0);
+            code.insertAfter(i, return_, 0);
+        }
+    }
+}
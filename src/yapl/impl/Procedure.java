@@ -1,18 +1,26 @@
 package yapl.impl;
 
-import yapl.interfaces.Symbol;
-
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Arrays;
+import java.util.BitSet;
 
 public class Procedure {
     /**
-     * label which gets jumped to later with call [name]
+     * label which gets jumped to later with call [label]
      */
-    public final String name;
+    public final int label;
 
     public final int nParams;
 
+    /**
+     * code address of the procedure's first instruction
+     */
+    public final int startAddress;
+
+    /**
+     * number of labels assigned before the procedure, see {@link LabelTable#assignedCount()}
+     */
+    public final int labelMark;
+
     /**
      * location in the bytecode where the framesize is defined. will be
      * overwritten later when the procedure definition is finished and
@@ -21,47 +29,94 @@ public class Procedure {
     public final int backPatchLocationForFrameSize;
 
     /**
-     * stores the sizes and order of all local variables allocated with
-     * allocStack
+     * words of the frame which are currently allocated with allocStack, released words are reused
      */
-    public final List<Integer> localVariableSizes = new LinkedList<>();
+    private final BitSet usedWords = new BitSet();
 
-    public Procedure(String name, int nParams, int backPatchLocationForFrameSize) {
-        this.name = name;
+    /**
+     * frame size in words: the parameters and the maximum number of words allocated at the same time
+     */
+    private int frameSize;
+
+    /**
+     * code addresses of all load/store instructions accessing the frame, and the accessed words,
+     * in the order of their emission; see {@link SpillRecord}
+     */
+    private int[] accessAddresses = new int[16];
+    private int[] accessedWords = new int[16];
+    private int nAccesses = 0;
+
+    public Procedure(int label, int nParams, int startAddress, int labelMark, int backPatchLocationForFrameSize) {
+        this.label = label;
         this.nParams = nParams;
+        this.startAddress = startAddress;
+        this.labelMark = labelMark;
         this.backPatchLocationForFrameSize = backPatchLocationForFrameSize;
+        this.frameSize = nParams;
     }
 
     /**
-     * @return frameSize = nParams + nLocalVariables (in words)
+     * @return frameSize = nParams + peak number of allocated words
      */
-    public byte calculateFrameSize() {
-        return (byte) (nParams + localVariableSizes.stream().mapToInt(e -> e).sum());
+    public int calculateFrameSize() {
+        return frameSize;
     }
 
     /**
+     * Allocates the first free sequence of nWords words of the frame.
+     *
      * @param nWords - number of words to be allocated on the stack
      * @return adress of the beginning of the newly allocated memory section
      * (like malloc)
      */
     public int allocStackVariable(int nWords) {
-        int address = localVariableSizes.size() + nParams;
+        int address = usedWords.nextClearBit(nParams);
+        int used;
+        while ((used = usedWords.nextSetBit(address)) >= 0 && used < address + nWords)
+            address = usedWords.nextClearBit(used);
 
-        localVariableSizes.add(nWords);
+        usedWords.set(address, address + nWords);
+        frameSize = Math.max(frameSize, address + nWords);
 
         return address;
     }
 
     /**
-     * Create a label for the procedure symbol.
-     * <br />
-     * Add hashcode to avoid errors with duplicate names (see /testfiles/symbolcheck/test13.yapl).
-     * Use spaces as delimiter as they are not allowed in YAPL identifiers.
-     * @param end
+     * Releases words allocated with {@link #allocStackVariable(int)} for reuse (like free).
      */
-    public static String getLabel(Symbol proc, boolean end){
-        return proc.getName() + " " + proc.hashCode()
-                // add ' end' to avoid overwriting the start label
-                + (end ? "end" : "");
+    public void freeStackVariable(int address, int nWords) {
+        if (address < nParams || usedWords.nextClearBit(address) < address + nWords)
+            throw new IllegalArgumentException("Words " + address + ".." + (address + nWords - 1) + " are not allocated.");
+
+        usedWords.clear(address, address + nWords);
+    }
+
+    /**
+     * Records a load or store instruction emitted at the given address, which accesses the given word of the frame.
+     */
+    public void recordAccess(int address, int word) {
+        if (nAccesses == accessAddresses.length) {
+            accessAddresses = Arrays.copyOf(accessAddresses, nAccesses * 2);
+            accessedWords = Arrays.copyOf(accessedWords, nAccesses * 2);
+        }
+
+        accessAddresses[nAccesses] = address;
+        accessedWords[nAccesses++] = word;
+    }
+
+    /**
+     * Forgets about the accesses from the given address on, whose code has been dropped.
+     */
+    public void discardAccesses(int from) {
+        while (nAccesses > 0 && accessAddresses[nAccesses - 1] >= from)
+            nAccesses--;
+    }
+
+    public int[] accessAddresses() {
+        return Arrays.copyOf(accessAddresses, nAccesses);
+    }
+
+    public int[] accessedWords() {
+        return Arrays.copyOf(accessedWords, nAccesses);
     }
 }
@@ -0,0 +1,428 @@
+package yapl.impl;
+
+import java.util.Arrays;
+
+/**
+ * The decoded code of a single, completely emitted procedure, which can be rewritten
+ * by optimization passes and encoded again in place.
+ * <p>
+ * Instructions are addressed by their index. Jump and call targets within the procedure
+ * are kept as instruction indices, so they stay correct when instructions are deleted
+ * or replaced. References to a deleted instruction continue at the next instruction.
+ * Targets outside of the procedure and pending label references are left untouched.
+ * <p>
+ * Instructions inserted before or after another one are only written by {@link #encode(CodeBuffer)},
+ * they are not visible to the other methods. Jumps inserted after an instruction skip some of the
+ * instructions inserted after them, see {@link #insertJumpAfter(int, Instruction, int)}.
+ */
+public class ProcedureCode {
+
+    private static final int NONE = -1;
+
+    /**
+     * address of the first instruction
+     */
+    private final int start;
+
+    /**
+     * address after the last instruction
+     */
+    private final int end;
+
+    private final int size;
+
+    private final Instruction[] instructions;
+    private final int[] operands;
+    private final int[] operands2;
+    private final int[] addresses;
+
+    /**
+     * index of the target instruction of jumps/calls within the procedure, NONE otherwise
+     */
+    private final int[] targets;
+
+    /**
+     * whether the code address operand is a pending label reference, which must not be touched
+     */
+    private final boolean[] pending;
+
+    /**
+     * number of jumps and labels referring to an instruction
+     */
+    private final int[] references;
+
+    private final boolean[] deleted;
+
+    /**
+     * instructions (and their operand) inserted after an instruction, null if there are none
+     */
+    private final Instruction[][] insertedInstructions;
+    private final int[][] insertedOperands;
+
+    /**
+     * instructions (and their operand) inserted before an instruction, null if there are none
+     */
+    private final Instruction[][] prefixInstructions;
+    private final int[][] prefixOperands;
+
+    /**
+     * new address of every instruction, valid after {@link #encode(CodeBuffer)}
+     */
+    private int[] newAddresses;
+    private int newEnd;
+
+    private ProcedureCode(int start, int end, int capacity) {
+        this.start = start;
+        this.end = end;
+
+        instructions = new Instruction[capacity];
+        operands = new int[capacity];
+        operands2 = new int[capacity];
+        addresses = new int[capacity];
+        targets = new int[capacity];
+        pending = new boolean[capacity];
+        references = new int[capacity];
+        deleted = new boolean[capacity];
+        insertedInstructions = new Instruction[capacity][];
+        insertedOperands = new int[capacity][];
+        prefixInstructions = new Instruction[capacity][];
+        prefixOperands = new int[capacity][];
+        size = capacity;
+    }
+
+    /**
+     * Decodes the code in [start, end).
+     *
+     * @param pendingFixups  sorted locations of pending label references within the range
+     * @param labelAddresses addresses of all labels assigned within the range
+     */
+    public static ProcedureCode decode(CodeBuffer code, int start, int end, int[] pendingFixups, int[] labelAddresses) {
+        // count instructions first to allocate exactly sized arrays
+        int n = 0;
+        for (int address = start; address < end; n++)
+            address += Instruction.fromOpcode(code.get8(address)).size();
+
+        ProcedureCode procedure = new ProcedureCode(start, end, n);
+
+        int address = start;
+        for (int i = 0; i < n; i++) {
+            Instruction instruction = Instruction.fromOpcode(code.get8(address));
+            procedure.instructions[i] = instruction;
+            procedure.addresses[i] = address;
+            procedure.targets[i] = NONE;
+
+            int operandAddress = address + 1;
+            for (int j = 0; j < instruction.operands.length; j++) {
+                OperandType type = instruction.operands[j];
+                int operand = type == OperandType.s8 ? (byte) code.get8(operandAddress)
+                        : type == OperandType.s16 ? code.get16(operandAddress)
+                        : code.get32(operandAddress);
+                if (instruction.hasCodeAddress())
+                    // code addresses up to 64K are kept during code generation, see ProgramLayout
+                    operand &= 0xFFFF;
+
+                if (j == 0)
+                    procedure.operands[i] = operand;
+                else
+                    procedure.operands2[i] = operand;
+
+                operandAddress += type.size;
+            }
+
+            if (instruction.hasCodeAddress())
+                procedure.pending[i] = Arrays.binarySearch(pendingFixups, address + 1) >= 0;
+
+            address += instruction.size();
+        }
+
+        // resolve targets within the procedure
+        for (int i = 0; i < n; i++) {
+            if (procedure.instructions[i].hasCodeAddress() && !procedure.pending[i]) {
+                int target = procedure.indexOf(procedure.operands[i]);
+                if (target != NONE) {
+                    procedure.targets[i] = target;
+                    procedure.references[target]++;
+                }
+            }
+        }
+
+        for (int labelAddress : labelAddresses) {
+            int target = procedure.indexOf(labelAddress);
+            if (target != NONE)
+                procedure.references[target]++;
+        }
+
+        return procedure;
+    }
+
+    /**
+     * @return index of the instruction at the given address, NONE if there is none
+     */
+    public int indexOf(int address) {
+        if (address < start || address >= end)
+            return NONE;
+
+        int index = Arrays.binarySearch(addresses, 0, size, address);
+        return index >= 0 ? index : NONE;
+    }
+
+    /**
+     * @return number of instructions, including deleted ones
+     */
+    public int size() {
+        return size;
+    }
+
+    public Instruction instruction(int index) {
+        return instructions[index];
+    }
+
+    public int operand(int index) {
+        return operands[index];
+    }
+
+    /**
+     * @return second operand of the instruction (enter only)
+     */
+    public int operand2(int index) {
+        return operands2[index];
+    }
+
+    /**
+     * @return whether the code address operand of the instruction is a pending label reference
+     */
+    public boolean isPending(int index) {
+        return pending[index];
+    }
+
+    public boolean isDeleted(int index) {
+        return deleted[index];
+    }
+
+    /**
+     * @return whether any jump or label refers to the instruction
+     */
+    public boolean isReferenced(int index) {
+        return references[index] > 0;
+    }
+
+    /**
+     * @return the next instruction which is not deleted, NONE at the end of the procedure
+     */
+    public int next(int index) {
+        for (int i = index + 1; i < size; i++)
+            if (!deleted[i])
+                return i;
+        return NONE;
+    }
+
+    /**
+     * @return first instruction at or after the given index which is not deleted, NONE at the end
+     */
+    private int live(int index) {
+        return deleted[index] ? next(index) : index;
+    }
+
+    /**
+     * @return the instruction actually jumped to by a jump within the procedure, NONE if the jump
+     * leaves the procedure or falls off its end
+     */
+    public int target(int index) {
+        return targets[index] == NONE ? NONE : live(targets[index]);
+    }
+
+    /**
+     * Replaces an instruction, keeping the target of jumps.
+     * A jump within the procedure may also be replaced by an instruction without code address.
+     */
+    public void replace(int index, Instruction instruction, int operand) {
+        if (instructions[index].hasCodeAddress() != instruction.hasCodeAddress()) {
+            if (instruction.hasCodeAddress() || pending[index] || targets[index] == NONE)
+                throw new IllegalArgumentException("Cannot replace " + instructions[index] + " by " + instruction + ".");
+
+            int target = target(index);
+            if (target != NONE)
+                references[target]--;
+            targets[index] = NONE;
+        }
+
+        instructions[index] = instruction;
+        operands[index] = operand;
+    }
+
+    /**
+     * Makes a jump within the procedure jump to another instruction.
+     */
+    public void retarget(int index, int target) {
+        if (targets[index] == NONE)
+            throw new IllegalArgumentException(instructions[index] + " at " + index + " has no target within the procedure.");
+
+        int oldTarget = target(index);
+        if (oldTarget != NONE)
+            references[oldTarget]--;
+
+        targets[index] = target;
+        references[target]++;
+    }
+
+    /**
+     * Replaces the second operand of an instruction (enter only).
+     */
+    public void setOperand2(int index, int operand) {
+        operands2[index] = operand;
+    }
+
+    /**
+     * Inserts an instruction with at most one operand, which is not a code address, after the given one
+     * (and after the instructions inserted there before). Jumps to the next instruction are not affected.
+     */
+    public void insertAfter(int index, Instruction instruction, int operand) {
+        if (instruction.hasCodeAddress() || instruction.operands.length > 1)
+            throw new IllegalArgumentException("Cannot insert " + instruction + ".");
+
+        insertedInstructions[index] = append(insertedInstructions[index], instruction);
+        insertedOperands[index] = append(insertedOperands[index], operand);
+    }
+
+    /**
+     * Inserts an instruction with at most one operand, which is not a code address, before the given one
+     * (and after the instructions inserted there before). Jumps to the given instruction execute the
+     * inserted instructions first. The instruction must not be a pending label reference.
+     */
+    public void insertBefore(int index, Instruction instruction, int operand) {
+        if (instruction.hasCodeAddress() || instruction.operands.length > 1 || pending[index])
+            throw new IllegalArgumentException("Cannot insert " + instruction + " before " + instructions[index] + ".");
+
+        prefixInstructions[index] = append(prefixInstructions[index], instruction);
+        prefixOperands[index] = append(prefixOperands[index], operand);
+    }
+
+    /**
+     * Inserts a jump after the given instruction (and after the instructions inserted there before), whose
+     * target is the instruction following the next skipped instructions inserted at the same place. Skipping
+     * all later insertions jumps to the next instruction.
+     */
+    public void insertJumpAfter(int index, Instruction jump, int skipped) {
+        if (!jump.isJump() || skipped < 0)
+            throw new IllegalArgumentException("Cannot insert " + jump + " skipping " + skipped + " instruction(s).");
+
+        insertedInstructions[index] = append(insertedInstructions[index], jump);
+        insertedOperands[index] = append(insertedOperands[index], skipped);
+    }
+
+    private static Instruction[] append(Instruction[] instructions, Instruction instruction) {
+        int n = instructions == null ? 0 : instructions.length;
+        instructions = n == 0 ? new Instruction[1] : Arrays.copyOf(instructions, n + 1);
+        instructions[n] = instruction;
+        return instructions;
+    }
+
+    private static int[] append(int[] operands, int operand) {
+        int n = operands == null ? 0 : operands.length;
+        operands = n == 0 ? new int[1] : Arrays.copyOf(operands, n + 1);
+        operands[n] = operand;
+        return operands;
+    }
+
+    /**
+     * Deletes an instruction. References to it continue at the next instruction.
+     */
+    public void delete(int index) {
+        if (deleted[index])
+            return;
+
+        int target = target(index);
+        if (target != NONE)
+            references[target]--;
+
+        deleted[index] = true;
+
+        int next = next(index);
+        if (next != NONE)
+            references[next] += references[index];
+        references[index] = 0;
+    }
+
+    /**
+     * Replaces the code of the procedure in the buffer with the rewritten instructions.
+     *
+     * @return the new end address of the procedure
+     */
+    public int encode(CodeBuffer code) {
+        newAddresses = new int[size];
+
+        int address = start;
+        for (int i = 0; i < size; i++) {
+            newAddresses[i] = address;
+            if (!deleted[i]) {
+                address += instructions[i].size();
+                if (prefixInstructions[i] != null)
+                    for (Instruction inserted : prefixInstructions[i])
+                        address += inserted.size();
+                if (insertedInstructions[i] != null)
+                    for (Instruction inserted : insertedInstructions[i])
+                        address += inserted.size();
+            }
+        }
+        newEnd = address;
+
+        code.truncate(start);
+
+        for (int i = 0; i < size; i++) {
+            if (deleted[i])
+                continue;
+
+            if (prefixInstructions[i] != null)
+                put(code, prefixInstructions[i], prefixOperands[i]);
+
+            Instruction instruction = instructions[i];
+            code.put8(instruction.value);
+
+            if (instruction.operands.length > 0) {
+                int operand = operands[i];
+                if (targets[i] != NONE)
+                    // a deleted instruction at the very end has the new end address
+                    operand = newAddresses[targets[i]];
+
+                code.put(operand, instruction.operands[0]);
+                if (instruction.operands.length > 1)
+                    code.put(operands2[i], instruction.operands[1]);
+            }
+
+            if (insertedInstructions[i] != null)
+                put(code, insertedInstructions[i], insertedOperands[i]);
+        }
+
+        return newEnd;
+    }
+
+    private static void put(CodeBuffer code, Instruction[] instructions, int[] operands) {
+        for (int j = 0; j < instructions.length; j++) {
+            int operand = operands[j];
+            if (instructions[j].hasCodeAddress()) {
+                // the number of skipped instructions, see insertJumpAfter
+                int target = code.size() + instructions[j].size();
+                for (int k = j + 1; k <= j + operand && k < instructions.length; k++)
+                    target += instructions[k].size();
+                operand = target;
+            }
+
+            code.put8(instructions[j].value);
+            if (instructions[j].operands.length > 0)
+                code.put(operand, instructions[j].operands[0]);
+        }
+    }
+
+    /**
+     * @return the new address of the instruction at the given old address, valid after {@link #encode(CodeBuffer)}
+     */
+    public int newAddress(int oldAddress) {
+        if (oldAddress == end)
+            return newEnd;
+
+        int index = indexOf(oldAddress);
+        if (index == NONE)
+            throw new IllegalArgumentException("No instruction at address " + oldAddress + ".");
+        return newAddresses[index];
+    }
+}
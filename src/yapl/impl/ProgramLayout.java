@@ -0,0 +1,384 @@
+package yapl.impl;
+
+import java.util.Arrays;
+import java.util.function.IntUnaryOperator;
+
+import static yapl.impl.Instruction.*;
+
+/**
+ * Final layout of the code of a complete program.
+ * <p>
+ * Procedures which cannot be reached by calls from the main procedure are dropped.
+ * <p>
+ * Code which does not fit below the 32K limit of the s16 code address operands of jumps
+ * and calls is laid out with far jumps. The MJ VM has no relative or indirect jump, but
+ * <code>return</code> continues at any address taken from the procedure stack. A far jump
+ * pushes the target address there with a temporary frame,
+ * <pre>
+ * const target; enter 1 1; return
+ * </pre>
+ * and the target starts with <code>exit</code>, which drops the temporary frame again.
+ * Code falling through to such a target skips the <code>exit</code> by executing
+ * <code>enter 0 0</code> before it.
+ * <p>
+ * Conditional jumps and calls to far targets cannot be rewritten in place, they
+ * jump to a trampoline (a far jump) in an island at the start of the code instead.
+ * Calls keep their return address on the procedure stack below the temporary frame.
+ * <p>
+ * Only targets above 32K are far. To keep far jumps off hot paths, procedures
+ * containing loops are placed before all other procedures.
+ */
+public class ProgramLayout {
+
+    /**
+     * highest code address which can be encoded in the s16 operand of jumps and calls
+     */
+    public static final int MAX_NEAR_ADDRESS = Short.MAX_VALUE;
+
+    /**
+     * code addresses are kept as unsigned s16 operands until the layout is done
+     */
+    public static final int MAX_CODE_SIZE = 0x10000;
+
+    private static final int NONE = -1;
+
+    private static final int FAR_JUMP_SIZE = const_.size() + enter.size() + return_.size();
+
+    private final ProcedureCode code;
+    private final int size;
+
+    /**
+     * first instruction of every segment and the end of the last one (size); segment 0 is the code before
+     * the first procedure, the other segments are procedures
+     */
+    private final int[] segmentStarts;
+    private final int nSegments;
+
+    /**
+     * whether some segment may fall through to the next one, which prevents moving segments
+     */
+    private final boolean fallsThrough;
+
+    /**
+     * kept instruction indices in the order of the new layout
+     */
+    private final int[] order;
+    private final boolean dropped, reordered;
+
+    /**
+     * whether an instruction is the target of a jump or call
+     */
+    private final boolean[] referenced;
+
+    /**
+     * whether an instruction is the target of a conditional jump or call, which need a trampoline if it is far
+     */
+    private final boolean[] needsTrampoline;
+
+    private final boolean[] far;
+
+    /**
+     * address of every (original) instruction and of its trampoline
+     */
+    private final int[] instructionAddresses, trampolineAddresses;
+
+    private final int mainIndex;
+    private int islandSize, codeSize;
+
+    /**
+     * @param procedureStarts start addresses of all procedures in ascending order
+     * @param startPC         address of the main procedure
+     */
+    public ProgramLayout(CodeBuffer codeBuffer, int[] procedureStarts, int startPC) {
+        int end = codeBuffer.size();
+        code = ProcedureCode.decode(codeBuffer, 0, end, new int[0], new int[0]);
+        size = code.size();
+
+        referenced = new boolean[size];
+        needsTrampoline = new boolean[size];
+        far = new boolean[size];
+        instructionAddresses = new int[size];
+        trampolineAddresses = new int[size];
+
+        int[] oldAddresses = new int[size];
+        int mainIndex = NONE;
+        for (int i = 0, address = 0; i < size; address += code.instruction(i).size(), i++) {
+            oldAddresses[i] = address;
+            if (address == startPC)
+                mainIndex = i;
+
+            if (code.instruction(i).hasCodeAddress() && code.target(i) == NONE)
+                throw new IllegalStateException("Jump target " + code.operand(i) + " at " + address + " is not an instruction.");
+        }
+        this.mainIndex = mainIndex;
+
+        // segment boundaries as instruction indices
+        segmentStarts = new int[procedureStarts.length + 2];
+        int nSegments = 0;
+        segmentStarts[nSegments++] = 0;
+        for (int start : procedureStarts) {
+            int index = Arrays.binarySearch(oldAddresses, start);
+            if (index > 0 && index < size)
+                segmentStarts[nSegments++] = index;
+        }
+        segmentStarts[nSegments] = size;
+        this.nSegments = nSegments;
+
+        boolean fallsThrough = false;
+        for (int segment = 0; segment < nSegments; segment++) {
+            int from = segmentStarts[segment], to = segmentStarts[segment + 1];
+            if (from < to && code.instruction(to - 1) != return_ && code.instruction(to - 1) != jmp)
+                fallsThrough = true;
+        }
+        this.fallsThrough = fallsThrough;
+
+        boolean[] kept = reachableSegments();
+        int keptSize = 0;
+        boolean dropped = false;
+        for (int segment = 0; segment < nSegments; segment++) {
+            for (int i = segmentStarts[segment]; i < segmentStarts[segment + 1]; i++) {
+                if (kept[segment])
+                    keptSize += code.instruction(i).size();
+                else
+                    dropped = true;
+            }
+        }
+        this.dropped = dropped;
+
+        reordered = keptSize > MAX_NEAR_ADDRESS + 1 && !fallsThrough;
+        order = reordered ? hotSegmentsFirst(kept) : keptInOrder(kept);
+
+        for (int i : order) {
+            if (!code.instruction(i).hasCodeAddress())
+                continue;
+
+            int target = code.target(i);
+            referenced[target] = true;
+            if (code.instruction(i) != jmp)
+                needsTrampoline[target] = true;
+        }
+
+        // a target becomes far once it is above the limit, which can only push other targets up
+        boolean changed;
+        do {
+            assignAddresses();
+
+            changed = false;
+            for (int i : order) {
+                if (referenced[i] && !far[i] && instructionAddresses[i] > MAX_NEAR_ADDRESS) {
+                    far[i] = true;
+                    changed = true;
+                }
+            }
+        } while (changed);
+
+        if (islandSize > MAX_NEAR_ADDRESS + 1)
+            throw new CodeLimitException(ErrorType.CodeTooLarge, "the trampolines do not fit below address " + MAX_NEAR_ADDRESS);
+    }
+
+    /**
+     * @return index of the segment containing the instruction
+     */
+    private int segmentOf(int index) {
+        int segment = Arrays.binarySearch(segmentStarts, 0, nSegments, index);
+        if (segment < 0)
+            return -segment - 2;
+
+        // skip empty segments starting at the same instruction
+        while (segment + 1 < nSegments && segmentStarts[segment + 1] == index)
+            segment++;
+        return segment;
+    }
+
+    /**
+     * @return for every segment whether it is reached by calls (or jumps) from the main procedure,
+     * all segments if some code may fall through to the next segment
+     */
+    private boolean[] reachableSegments() {
+        boolean[] reachable = new boolean[nSegments];
+        if (fallsThrough || mainIndex == NONE) {
+            Arrays.fill(reachable, true);
+            return reachable;
+        }
+
+        int[] worklist = new int[nSegments];
+        int n = 0;
+        reachable[segmentOf(mainIndex)] = true;
+        worklist[n++] = segmentOf(mainIndex);
+
+        while (n > 0) {
+            int segment = worklist[--n];
+            for (int i = segmentStarts[segment]; i < segmentStarts[segment + 1]; i++) {
+                if (!code.instruction(i).hasCodeAddress())
+                    continue;
+
+                int callee = segmentOf(code.target(i));
+                if (!reachable[callee]) {
+                    reachable[callee] = true;
+                    worklist[n++] = callee;
+                }
+            }
+        }
+        return reachable;
+    }
+
+    private int[] keptInOrder(boolean[] kept) {
+        int[] order = new int[size];
+        int n = 0;
+        for (int segment = 0; segment < nSegments; segment++)
+            if (kept[segment])
+                for (int i = segmentStarts[segment]; i < segmentStarts[segment + 1]; i++)
+                    order[n++] = i;
+        return Arrays.copyOf(order, n);
+    }
+
+    /**
+     * @return kept instruction indices with the segments containing backward jumps (loops) first
+     */
+    private int[] hotSegmentsFirst(boolean[] kept) {
+        boolean[] hot = new boolean[nSegments];
+        for (int segment = 0; segment < nSegments; segment++) {
+            int from = segmentStarts[segment], to = segmentStarts[segment + 1];
+            for (int i = from; i < to; i++)
+                if (code.instruction(i).isJump() && code.target(i) <= i && code.target(i) >= from)
+                    hot[segment] = true;
+        }
+
+        int[] order = new int[size];
+        int n = 0;
+        for (boolean hotPass : new boolean[]{true, false})
+            for (int segment = 0; segment < nSegments; segment++)
+                if (kept[segment] && hot[segment] == hotPass)
+                    for (int i = segmentStarts[segment]; i < segmentStarts[segment + 1]; i++)
+                        order[n++] = i;
+        return Arrays.copyOf(order, n);
+    }
+
+    private boolean fallsThrough(int position) {
+        if (position < 0)
+            return false;
+
+        Instruction instruction = code.instruction(order[position]);
+        return instruction != jmp && instruction != return_;
+    }
+
+    /**
+     * Assigns addresses for the current set of far targets.
+     */
+    private void assignAddresses() {
+        int address = 0;
+        for (int i = 0; i < size; i++) {
+            if (far[i] && needsTrampoline[i]) {
+                trampolineAddresses[i] = address;
+                address += FAR_JUMP_SIZE;
+            }
+        }
+        islandSize = address;
+
+        for (int position = 0; position < order.length; position++) {
+            int i = order[position];
+            if (far[i])
+                address += fallsThrough(position - 1) ? enter.size() + exit.size() : exit.size();
+            instructionAddresses[i] = address;
+
+            Instruction instruction = code.instruction(i);
+            if (instruction == jmp && far[code.target(i)])
+                address += FAR_JUMP_SIZE;
+            else
+                address += instruction.size();
+        }
+        codeSize = address;
+    }
+
+    /**
+     * @return whether the layout is the original code, so it need not be encoded
+     */
+    public boolean isUnchanged() {
+        return !dropped && !reordered && Arrays.stream(order).noneMatch(i -> far[i]);
+    }
+
+    /**
+     * @return sorted static data addresses of the strings printed by the kept code
+     */
+    public int[] stringReferences() {
+        return Arrays.stream(order)
+                .filter(i -> code.instruction(i) == sprint)
+                .map(code::operand)
+                .sorted()
+                .distinct()
+                .toArray();
+    }
+
+    /**
+     * @return address of the main procedure in the new layout
+     */
+    public int startPC() {
+        return instructionAddresses[mainIndex];
+    }
+
+    /**
+     * @param staticAddress maps the old address of static data to its new address
+     * @return the code in the new layout
+     */
+    public CodeBuffer encode(IntUnaryOperator staticAddress) {
+        CodeBuffer out = new CodeBuffer(codeSize);
+
+        for (int i = 0; i < size; i++)
+            if (far[i] && needsTrampoline[i])
+                farJump(out, farAddress(i));
+
+        for (int position = 0; position < order.length; position++) {
+            int i = order[position];
+
+            if (far[i]) {
+                if (fallsThrough(position - 1)) {
+                    out.put8(enter.value);
+                    out.put8(0);
+                    out.put8(0);
+                }
+                out.put8(exit.value);
+            }
+
+            Instruction instruction = code.instruction(i);
+            if (instruction.hasCodeAddress()) {
+                int target = code.target(i);
+                if (!far[target]) {
+                    out.put8(instruction.value);
+                    out.put16(instructionAddresses[target]);
+                } else if (instruction == jmp) {
+                    farJump(out, farAddress(target));
+                } else {
+                    out.put8(instruction.value);
+                    out.put16(trampolineAddresses[target]);
+                }
+                continue;
+            }
+
+            out.put8(instruction.value);
+            if (instruction == getstatic || instruction == putstatic || instruction == sprint)
+                out.put(staticAddress.applyAsInt(code.operand(i)), instruction.operands[0]);
+            else if (instruction.operands.length > 0)
+                out.put(code.operand(i), instruction.operands[0]);
+            if (instruction.operands.length > 1)
+                out.put(code.operand2(i), instruction.operands[1]);
+        }
+
+        return out;
+    }
+
+    /**
+     * @return address of the <code>exit</code> in front of a far target
+     */
+    private int farAddress(int index) {
+        return instructionAddresses[index] - exit.size();
+    }
+
+    private static void farJump(CodeBuffer out, int target) {
+        out.put8(const_.value);
+        out.put32(target);
+        out.put8(enter.value);
+        out.put8(1);
+        out.put8(1);
+        out.put8(return_.value);
+    }
+}
@@ -0,0 +1,165 @@
+package yapl.impl;
+
+import java.util.Arrays;
+
+import static yapl.impl.Instruction.*;
+
+/**
+ * Frame layout of a procedure with more than 127 words of parameters and local variables,
+ * which cannot be addressed by the s8 operands of load, store and enter.
+ * <p>
+ * As the procedure stack of the MJ VM holds only 400 words, such a frame is shrunk to
+ * {@value #SPILLED_FRAME_SIZE} words: the parameters and the most frequently accessed words
+ * (accesses within loops count 8 times per nesting level) keep a slot in the frame. All other
+ * words are moved into a record on the heap, which is referenced by the last slot S:
+ * <pre>
+ * load w   -> load S; getfield k
+ * store w  -> store T; load S; load T; putfield k
+ * </pre>
+ * where T is a scratch slot.
+ * <p>
+ * The MJ VM has no garbage collection, so the records are reused. Each procedure keeps the records
+ * of its completed calls in a list starting at a static word F, linked by their last field L:
+ * <pre>
+ * enter    -> enter; getstatic F; store S; load S; const0; jne pop; new n; store S; jmp body;
+ *             pop: load S; getfield L; putstatic F; load S; const0; putfield k; ...
+ * exit     -> load S; getstatic F; putfield L; load S; putstatic F; exit
+ * </pre>
+ * A reused record still holds the values of an earlier call, so the fields which may be read before
+ * they are written are cleared. Recursive calls take as many records as calls are active at a time.
+ */
+public class SpillRecord {
+
+    /**
+     * highest frame size which can be encoded in the s8 operand of enter
+     */
+    public static final int MAX_FRAME_SIZE = Byte.MAX_VALUE;
+
+    /**
+     * frame size of procedures with a spill record, unless they have more parameters
+     */
+    public static final int SPILLED_FRAME_SIZE = 32;
+
+    private static final int NONE = -1;
+
+    private SpillRecord() {
+    }
+
+    /**
+     * Moves words of the frame into a spill record.
+     * The code must not have been rewritten since the accesses were recorded.
+     *
+     * @param freeList address of the static word holding the records which are not in use
+     */
+    public static void rewrite(ProcedureCode code, Procedure procedure, int freeList) {
+        int nParams = procedure.nParams, frameSize = procedure.calculateFrameSize();
+
+        // parameters, locals keeping their slot, the scratch slot and the slot referencing the record
+        int nSlots = Math.max(SPILLED_FRAME_SIZE - nParams - 2, 0);
+        int scratch = nParams + nSlots, record = scratch + 1;
+        if (record >= MAX_FRAME_SIZE)
+            throw new CodeLimitException(ErrorType.TooManyParams, nParams + " do not fit into a frame with "
+                    + (frameSize - nParams) + " words of local variables");
+
+        int[] addresses = procedure.accessAddresses(), words = procedure.accessedWords();
+        int[] indices = new int[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            indices[i] = code.indexOf(addresses[i]);
+            if (indices[i] == NONE)
+                throw new IllegalStateException("No instruction at address " + addresses[i] + ".");
+        }
+
+        // the frame word accessed by every instruction, as the operands of words above 127 are cropped
+        int[] accessedWords = new int[code.size()];
+        Arrays.fill(accessedWords, NONE);
+        for (int i = 0; i < indices.length; i++)
+            accessedWords[indices[i]] = words[i];
+        int[] readFirst = InlineCandidate.clearedLocals(code, nParams, frameSize, accessedWords);
+
+        long[] weights = new long[frameSize];
+        int[] depths = loopDepths(code);
+        for (int i = 0; i < indices.length; i++)
+            weights[words[i]] += 1L << 3 * Math.min(depths[indices[i]], 10);
+
+        // locals ordered by descending weight, the first ones keep a slot
+        Integer[] locals = new Integer[frameSize - nParams];
+        for (int i = 0; i < locals.length; i++)
+            locals[i] = nParams + i;
+        Arrays.sort(locals, (a, b) -> Long.compare(weights[b], weights[a]));
+
+        int[] slots = new int[frameSize], fields = new int[frameSize];
+        for (int word = 0; word < nParams; word++)
+            slots[word] = word;
+        for (int i = 0; i < locals.length; i++) {
+            slots[locals[i]] = i < nSlots ? nParams + i : NONE;
+            fields[locals[i]] = i - nSlots;
+        }
+
+        for (int i = 0; i < indices.length; i++) {
+            int index = indices[i], word = words[i];
+            boolean isLoad = code.instruction(index) == load;
+
+            if (slots[word] != NONE) {
+                code.replace(index, code.instruction(index), slots[word]);
+            } else if (isLoad) {
+                code.replace(index, load, record);
+                code.insertAfter(index, getfield, fields[word]);
+            } else {
+                code.replace(index, store, scratch);
+                code.insertAfter(index, load, record);
+                code.insertAfter(index, load, scratch);
+                code.insertAfter(index, putfield, fields[word]);
+            }
+        }
+
+        int nFields = locals.length - nSlots, link = nFields;
+        int[] cleared = Arrays.stream(readFirst).filter(word -> slots[word] == NONE).map(word -> fields[word]).toArray();
+
+        // enter is the first instruction
+        code.setOperand2(0, record + 1);
+        code.insertAfter(0, getstatic, freeList);
+        code.insertAfter(0, store, record);
+        code.insertAfter(0, load, record);
+        code.insertAfter(0, const0, 0);
+        code.insertJumpAfter(0, jne, 3);
+        code.insertAfter(0, new_, nFields + 1);
+        code.insertAfter(0, store, record);
+        code.insertJumpAfter(0, jmp, 3 + 3 * cleared.length);
+        code.insertAfter(0, load, record);
+        code.insertAfter(0, getfield, link);
+        code.insertAfter(0, putstatic, freeList);
+        for (int field : cleared) {
+            code.insertAfter(0, load, record);
+            code.insertAfter(0, const0, 0);
+            code.insertAfter(0, putfield, field);
+        }
+
+        for (int i = 0; i < code.size(); i++) {
+            if (code.instruction(i) == exit) {
+                code.insertBefore(i, load, record);
+                code.insertBefore(i, getstatic, freeList);
+                code.insertBefore(i, putfield, link);
+                code.insertBefore(i, load, record);
+                code.insertBefore(i, putstatic, freeList);
+            }
+        }
+    }
+
+    /**
+     * @return number of loops (ranges of backward jumps) containing each instruction
+     */
+    private static int[] loopDepths(ProcedureCode code) {
+        int[] depths = new int[code.size() + 1];
+        for (int i = 0; i < code.size(); i++) {
+            int target = code.target(i);
+            if (code.instruction(i).isJump() && target != NONE && target <= i) {
+                depths[target]++;
+                depths[i + 1]--;
+            }
+        }
+
+        for (int i = 1; i < depths.length; i++)
+            depths[i] += depths[i - 1];
+        return depths;
+    }
+}
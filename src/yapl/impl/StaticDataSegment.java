@@ -0,0 +1,86 @@
+package yapl.impl;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Growable, word-aligned static data area of a MJ object file.
+ * <p>
+ * The area is addressed in words, so every allocation starts at a word boundary.
+ * Bytes are packed into words in big endian order, which is how the MJ VM
+ * reads them (e.g. for sprint).
+ */
+public class StaticDataSegment {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int[] words = new int[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * @return number of words in the segment
+     */
+    public int size() {
+        return size;
+    }
+
+    private void ensureCapacity(int nWords) {
+        if (size + nWords > words.length)
+            words = Arrays.copyOf(words, Math.max(words.length * 2, size + nWords));
+    }
+
+    /**
+     * allocates nWords zero-initialized words
+     *
+     * @return word address of the first allocated word
+     */
+    public int allocWords(int nWords) {
+        ensureCapacity(nWords);
+        int start = size;
+        size += nWords;
+        return start;
+    }
+
+    /**
+     * Copies the given bytes into the segment, padding the last word with zero bytes.
+     *
+     * @return word address of the first byte
+     */
+    public int allocBytes(byte[] bytes) {
+        int start = allocWords((bytes.length + 3) / 4);
+
+        for (int i = 0; i < bytes.length; i++)
+            words[start + i / 4] |= (bytes[i] & 0xFF) << (8 * (3 - i % 4));
+
+        return start;
+    }
+
+    /**
+     * Removes the given words, moving all following words down.
+     *
+     * @return the new address of every old word address (and of the end of the segment)
+     */
+    public int[] remove(BitSet removed) {
+        int[] newAddresses = new int[size + 1];
+        int n = 0;
+        for (int address = 0; address < size; address++) {
+            newAddresses[address] = n;
+            if (!removed.get(address))
+                words[n++] = words[address];
+        }
+        newAddresses[size] = n;
+        size = n;
+
+        return newAddresses;
+    }
+
+    /**
+     * @return the segment content in big endian order, ready to be written
+     */
+    public ByteBuffer toByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(size * 4);
+        buffer.asIntBuffer().put(words, 0, size);
+        return buffer;
+    }
+}
@@ -0,0 +1,132 @@
+package yapl.impl;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static yapl.impl.Instruction.sprint;
+
+/**
+ * References between the segments of streamed code and the strings printed by the code, collected
+ * while each procedure is still in memory.
+ * <p>
+ * They tell whether {@link ProgramLayout} would keep the code as it is, so the streamed code need not
+ * be read back from the file. The answer errs on the safe side: code which might change is laid out.
+ */
+public class StreamedCodeReferences {
+
+    /**
+     * address of the instruction and its target of every code reference leaving a procedure;
+     * for pending label references the location of the operand, which is read at the end
+     */
+    private int[] sources = new int[16], targets = new int[16];
+    private final BitSet pending = new BitSet();
+    private int nReferences = 0;
+
+    /**
+     * static data addresses of all printed strings
+     */
+    private final BitSet strings = new BitSet();
+
+    /**
+     * end of the code collected so far
+     */
+    private int end = 0;
+
+    /**
+     * Collects the references of the code from the end of the previously collected code up to the
+     * end of the code buffer, which must still be in memory. Jumps within the procedure are skipped.
+     *
+     * @param procedureStart address of the procedure at the end of the code
+     * @param pendingFixups  sorted locations of pending label references, at least those within the code
+     */
+    public void add(CodeBuffer codeBuffer, int procedureStart, int[] pendingFixups) {
+        int start = end;
+        end = codeBuffer.size();
+        ProcedureCode code = ProcedureCode.decode(codeBuffer, start, end, pendingFixups, new int[0]);
+
+        for (int i = 0, address = start; i < code.size(); address += code.instruction(i).size(), i++) {
+            Instruction instruction = code.instruction(i);
+            if (instruction == sprint)
+                strings.set(code.operand(i));
+            if (!instruction.hasCodeAddress())
+                continue;
+
+            if (code.isPending(i)) {
+                pending.set(nReferences);
+                addReference(address, address + 1);
+            } else if (address < procedureStart || code.operand(i) < procedureStart || code.operand(i) >= end) {
+                addReference(address, code.operand(i));
+            }
+        }
+    }
+
+    private void addReference(int source, int target) {
+        if (nReferences == sources.length) {
+            sources = Arrays.copyOf(sources, nReferences * 2);
+            targets = Arrays.copyOf(targets, nReferences * 2);
+        }
+        sources[nReferences] = source;
+        targets[nReferences++] = target;
+    }
+
+    /**
+     * @param codeBuffer      the complete code
+     * @param procedureStarts start addresses of all procedures in ascending order
+     * @param startPC         address of the main procedure
+     * @return whether the layout keeps all code in place and needs all strings, false if not all code was collected
+     */
+    public boolean isUnchanged(CodeBuffer codeBuffer, int[] procedureStarts, int startPC, StringPool stringPool) {
+        if (end != codeBuffer.size() || end > ProgramLayout.MAX_NEAR_ADDRESS + 1)
+            return false;
+
+        // segment boundaries as in ProgramLayout, segment 0 is the code before the first procedure
+        int[] segmentStarts = new int[procedureStarts.length + 2];
+        int nSegments = 0;
+        segmentStarts[nSegments++] = 0;
+        for (int start : procedureStarts)
+            if (start > 0 && start < end)
+                segmentStarts[nSegments++] = start;
+        segmentStarts[nSegments] = end;
+
+        int[] sourceSegments = new int[nReferences], targetSegments = new int[nReferences];
+        for (int reference = 0; reference < nReferences; reference++) {
+            int target = pending.get(reference) ? codeBuffer.get16(targets[reference]) & 0xFFFF : targets[reference];
+            sourceSegments[reference] = segmentOf(segmentStarts, nSegments, sources[reference]);
+            targetSegments[reference] = segmentOf(segmentStarts, nSegments, target);
+        }
+
+        boolean[] reachable = new boolean[nSegments];
+        reachable[segmentOf(segmentStarts, nSegments, startPC)] = true;
+        boolean changed;
+        do {
+            changed = false;
+            for (int reference = 0; reference < nReferences; reference++) {
+                if (reachable[sourceSegments[reference]] && !reachable[targetSegments[reference]]) {
+                    reachable[targetSegments[reference]] = true;
+                    changed = true;
+                }
+            }
+        } while (changed);
+
+        for (int segment = 0; segment < nSegments; segment++)
+            if (!reachable[segment] && segmentStarts[segment] < segmentStarts[segment + 1])
+                return false;
+
+        return stringPool.unusedWords(strings.stream().toArray()).isEmpty();
+    }
+
+    /**
+     * @return index of the last segment starting at or before the address
+     */
+    private static int segmentOf(int[] segmentStarts, int nSegments, int address) {
+        int low = 0, high = nSegments - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (segmentStarts[middle] <= address)
+                low = middle;
+            else
+                high = middle - 1;
+        }
+        return low;
+    }
+}
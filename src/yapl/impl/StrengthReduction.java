@@ -0,0 +1,341 @@
+package yapl.impl;
+
+import yapl.interfaces.MemoryRegion;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replaces expensive operations by cheaper ones.
+ * <ul>
+ *     <li>A multiplication by 2^k becomes a shift to the left by k, which is the same also when it overflows.
+ *     Both cost the same in the MJ VM, but the shift count is never a longer constant.</li>
+ *     <li>A division of a value which is known to be non-negative by 2^k becomes a shift to the right by k.
+ *     For negative values the shift rounds down instead of towards zero, so other divisions are kept.</li>
+ *     <li>A basic induction variable of a loop, which is only changed by adding a constant once, multiplied by
+ *     a constant: the product is kept in a temporary, which is initialized in a pre-header and incremented
+ *     together with the variable, so the multiplications in the loop become loads. As the increment adds
+ *     four instructions to every iteration, this is only done if the products saved in the blocks executed
+ *     in every iteration outweigh it.</li>
+ * </ul>
+ * Modulo operations are kept, as the MJ VM has no instruction to mask the low bits of a value.
+ */
+public class StrengthReduction implements IrPass {
+
+    /**
+     * number of instructions incrementing the product of an induction variable
+     */
+    private static final int INCREMENT_SIZE = 4;
+
+    /**
+     * an instruction of a block
+     */
+    private static class Position {
+        final BasicBlock block;
+        final IrInstruction instruction;
+
+        Position(BasicBlock block, IrInstruction instruction) {
+            this.block = block;
+            this.instruction = instruction;
+        }
+    }
+
+    @Override
+    public String name() {
+        return "strength-reduction";
+    }
+
+    @Override
+    public void run(ControlFlowGraph graph) {
+        reduceDivisions(graph);
+
+        Set<BasicBlock> optimized = new HashSet<>();
+        boolean found = true;
+        while (found) {
+            found = false;
+            for (Loop loop : Loop.find(graph)) {
+                if (optimized.add(loop.header)) {
+                    reduceInductionVariables(graph, loop);
+                    found = true;
+                    break;
+                }
+            }
+        }
+
+        // last, so it also applies to the products initializing temporaries
+        reduceMultiplications(graph);
+    }
+
+    /*--- multiplications and divisions ---*/
+
+    private static void reduceMultiplications(ControlFlowGraph graph) {
+        for (BasicBlock block : graph.blocks) {
+            List<IrInstruction> instructions = block.instructions;
+            for (int i = 1; i < instructions.size(); i++) {
+                IrInstruction factor = instructions.get(i - 1);
+                int shift = factor.op == IrOp.LOAD_CONST ? shiftOf(factor.operand) : -1;
+                if (instructions.get(i).op == IrOp.MUL && shift > 0) {
+                    instructions.set(i - 1, new IrInstruction(IrOp.LOAD_CONST, shift));
+                    instructions.set(i, new IrInstruction(IrOp.SHL));
+                }
+            }
+        }
+    }
+
+    private static void reduceDivisions(ControlFlowGraph graph) {
+        BitSet nonNegativeWords = nonNegativeWords(graph);
+
+        for (BasicBlock block : graph.blocks) {
+            List<Boolean> stack = initialStack(block);
+            if (stack == null)
+                continue;
+
+            List<IrInstruction> instructions = block.instructions;
+            for (int i = 0; i < instructions.size(); i++) {
+                IrInstruction instruction = instructions.get(i);
+                if (instruction.pops == IrInstruction.UNKNOWN || instruction.pushes == IrInstruction.UNKNOWN)
+                    break;
+
+                if (instruction.op == IrOp.DIV && stack.get(stack.size() - 2)) {
+                    IrInstruction divisor = instructions.get(i - 1);
+                    int shift = divisor.op == IrOp.LOAD_CONST ? shiftOf(divisor.operand) : -1;
+                    if (shift > 0) {
+                        instructions.set(i - 1, new IrInstruction(IrOp.LOAD_CONST, shift));
+                        instructions.set(i, instruction = new IrInstruction(IrOp.SHR));
+                    }
+                }
+
+                simulate(instruction, stack, nonNegativeWords);
+            }
+        }
+    }
+
+    /**
+     * @return the words of the frame which only ever hold non-negative values: local variables, which are
+     * initialized with 0, and temporaries only stored with non-negative values
+     */
+    static BitSet nonNegativeWords(ControlFlowGraph graph) {
+        BitSet words = new BitSet();
+        for (BasicBlock block : graph.blocks)
+            for (IrInstruction instruction : block.instructions)
+                if (instruction.op == IrOp.STORE_WORD && instruction.region == MemoryRegion.STACK)
+                    words.set(instruction.operand);
+        words.set(0, graph.nParams, false);
+
+        // remove words stored with values which may be negative, until all remaining words are proven
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (BasicBlock block : graph.blocks) {
+                List<Boolean> stack = initialStack(block);
+
+                for (IrInstruction instruction : block.instructions) {
+                    if (stack != null && (instruction.pops == IrInstruction.UNKNOWN || instruction.pushes == IrInstruction.UNKNOWN))
+                        stack = null;
+
+                    if (instruction.op == IrOp.STORE_WORD && instruction.region == MemoryRegion.STACK
+                            && words.get(instruction.operand) && (stack == null || !stack.get(stack.size() - 1))) {
+                        words.clear(instruction.operand);
+                        changed = true;
+                    }
+
+                    if (stack != null)
+                        simulate(instruction, stack, words);
+                }
+            }
+        }
+        return words;
+    }
+
+    /**
+     * @return for every value on the expression stack at the start of the block whether it is non-negative,
+     * null if the depth of the stack is not known
+     */
+    private static List<Boolean> initialStack(BasicBlock block) {
+        if (block.stackDepth == IrInstruction.UNKNOWN)
+            return null;
+
+        List<Boolean> stack = new ArrayList<>();
+        for (int i = 0; i < block.stackDepth; i++)
+            stack.add(false);
+        return stack;
+    }
+
+    /**
+     * Applies the effect of the instruction to the stack of values, which records whether they are non-negative.
+     * Sums and products may overflow, so they are never known to be non-negative.
+     */
+    private static void simulate(IrInstruction instruction, List<Boolean> stack, BitSet nonNegativeWords) {
+        List<Boolean> operands = stack.subList(stack.size() - instruction.pops, stack.size());
+
+        boolean nonNegative;
+        switch (instruction.op) {
+            case LOAD_CONST:
+                nonNegative = instruction.operand >= 0;
+                break;
+            case LOAD_WORD:
+                nonNegative = instruction.region == MemoryRegion.STACK && nonNegativeWords.get(instruction.operand);
+                break;
+            case ARRAY_LENGTH:
+            case NOT:
+            case AND:
+            case OR:
+            case IS_EQUAL:
+            case IS_NOT_EQUAL:
+            case IS_LESS:
+            case IS_LESS_OR_EQUAL:
+            case IS_GREATER:
+            case IS_GREATER_OR_EQUAL:
+                nonNegative = true;
+                break;
+            case SHR:
+            case MOD:
+                nonNegative = operands.get(0);
+                break;
+            case DIV:
+                nonNegative = operands.get(0) && operands.get(1);
+                break;
+            default:
+                nonNegative = false;
+                break;
+        }
+
+        operands.clear();
+        if (instruction.pushes == 1)
+            stack.add(nonNegative);
+    }
+
+    /**
+     * @return k if the value is 2^k for k &gt; 0, -1 otherwise
+     */
+    private static int shiftOf(int value) {
+        return value > 1 && (value & (value - 1)) == 0 ? Integer.numberOfTrailingZeros(value) : -1;
+    }
+
+    /*--- induction variables ---*/
+
+    private static void reduceInductionVariables(ControlFlowGraph graph, Loop loop) {
+        // the only store of each word within the loop, null if it is stored more than once
+        Map<Integer, Position> stores = new LinkedHashMap<>();
+        BitSet allocated = new BitSet();
+        for (BasicBlock block : loop.blocks) {
+            for (IrInstruction instruction : block.instructions) {
+                if (instruction.op == IrOp.STORE_WORD && instruction.region == MemoryRegion.STACK)
+                    stores.put(instruction.operand, stores.containsKey(instruction.operand) ? null : new Position(block, instruction));
+                else if (instruction.op == IrOp.ALLOC_STACK || instruction.op == IrOp.FREE_STACK)
+                    allocated.set(instruction.operand, instruction.operand + instruction.words);
+            }
+        }
+
+        BasicBlock preheader = null;
+        for (Map.Entry<Integer, Position> store : stores.entrySet()) {
+            int word = store.getKey();
+            Position update = store.getValue();
+            if (update == null || allocated.get(word))
+                continue;
+
+            Integer step = step(update, word);
+            if (step == null)
+                continue;
+
+            // products of the variable by factor
+            Map<Integer, List<Position>> products = new LinkedHashMap<>();
+            for (BasicBlock block : loop.blocks) {
+                List<IrInstruction> instructions = block.instructions;
+                for (int i = 2; i < instructions.size(); i++) {
+                    Integer factor = factor(instructions.get(i - 2), instructions.get(i - 1), instructions.get(i), word);
+                    if (factor != null)
+                        products.computeIfAbsent(factor, f -> new ArrayList<>()).add(new Position(block, instructions.get(i)));
+                }
+            }
+
+            for (Map.Entry<Integer, List<Position>> product : products.entrySet()) {
+                if (saving(loop, product.getValue()) <= 0 || !graph.hasRoomForTemporary())
+                    continue;
+
+                if (preheader == null && (preheader = loop.insertPreheader(graph)) == null)
+                    return;
+
+                int factor = product.getKey();
+                int temporary = graph.newTemporary();
+                preheader.instructions.add(IrInstruction.loadWord(MemoryRegion.STACK, word));
+                preheader.instructions.add(new IrInstruction(IrOp.LOAD_CONST, factor));
+                preheader.instructions.add(new IrInstruction(IrOp.MUL));
+                preheader.instructions.add(IrInstruction.storeWord(MemoryRegion.STACK, temporary));
+
+                for (Position position : product.getValue()) {
+                    List<IrInstruction> instructions = position.block.instructions;
+                    int end = instructions.indexOf(position.instruction);
+                    List<IrInstruction> multiplication = instructions.subList(end - 2, end + 1);
+                    multiplication.clear();
+                    multiplication.add(IrInstruction.loadWord(MemoryRegion.STACK, temporary));
+                }
+
+                // (i + step) * factor = i * factor + step * factor, also when it overflows
+                List<IrInstruction> instructions = update.block.instructions;
+                int next = instructions.indexOf(update.instruction) + 1;
+                instructions.add(next, IrInstruction.storeWord(MemoryRegion.STACK, temporary));
+                instructions.add(next, new IrInstruction(IrOp.ADD));
+                instructions.add(next, new IrInstruction(IrOp.LOAD_CONST, step * factor));
+                instructions.add(next, IrInstruction.loadWord(MemoryRegion.STACK, temporary));
+            }
+        }
+    }
+
+    /**
+     * @return the number of instructions saved per iteration by replacing the products by loads. A product
+     * computed by three instructions becomes a single load, but from three products in a block on, common
+     * subexpression elimination already caches them at the cost of a store and a load.
+     */
+    private static int saving(Loop loop, List<Position> products) {
+        Map<BasicBlock, Integer> productsPerBlock = new LinkedHashMap<>();
+        for (Position position : products)
+            if (loop.everyIteration.contains(position.block))
+                productsPerBlock.merge(position.block, 1, Integer::sum);
+
+        int saving = -INCREMENT_SIZE;
+        for (int n : productsPerBlock.values())
+            saving += Math.min(2 * n, 4);
+        return saving;
+    }
+
+    /**
+     * @return the constant added to the word by the store, null if the store is not <code>word := word ± constant</code>
+     */
+    private static Integer step(Position store, int word) {
+        List<IrInstruction> instructions = store.block.instructions;
+        int i = instructions.indexOf(store.instruction);
+        if (i < 3)
+            return null;
+
+        IrInstruction a = instructions.get(i - 3), b = instructions.get(i - 2), op = instructions.get(i - 1);
+        if (op.op == IrOp.ADD && isLoad(a, word) && b.op == IrOp.LOAD_CONST)
+            return b.operand;
+        if (op.op == IrOp.ADD && a.op == IrOp.LOAD_CONST && isLoad(b, word))
+            return a.operand;
+        if (op.op == IrOp.SUB && isLoad(a, word) && b.op == IrOp.LOAD_CONST)
+            return -b.operand;
+        return null;
+    }
+
+    /**
+     * @return the constant factor of the product <code>word * constant</code> computed by the instructions,
+     * null if they compute something else
+     */
+    private static Integer factor(IrInstruction a, IrInstruction b, IrInstruction op, int word) {
+        if (op.op == IrOp.MUL && isLoad(a, word) && b.op == IrOp.LOAD_CONST)
+            return b.operand;
+        if (op.op == IrOp.MUL && a.op == IrOp.LOAD_CONST && isLoad(b, word))
+            return a.operand;
+        return null;
+    }
+
+    private static boolean isLoad(IrInstruction instruction, int word) {
+        return instruction.op == IrOp.LOAD_WORD && instruction.region == MemoryRegion.STACK && instruction.operand == word;
+    }
+}
@@ -0,0 +1,86 @@
+package yapl.impl;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Pool of zero-terminated string constants in the static data area.
+ * <p>
+ * Every distinct string is stored only once. With suffix sharing enabled,
+ * a string is also not stored if it is a suffix of a pooled string starting
+ * at a word boundary (e.g. "False" inside "is False"), since MJ string
+ * addresses are word addresses.
+ */
+public class StringPool {
+
+    private final StaticDataSegment data;
+    private final boolean shareSuffixes;
+
+    /**
+     * word address for every string that can be printed from the pool
+     */
+    private final Map<String, Integer> addresses = new HashMap<>();
+
+    /**
+     * start address and number of words of every allocated string, in ascending order
+     */
+    private int[] blockStarts = new int[16], blockSizes = new int[16];
+    private int nBlocks = 0;
+
+    public StringPool(StaticDataSegment data, boolean shareSuffixes) {
+        this.data = data;
+        this.shareSuffixes = shareSuffixes;
+    }
+
+    /**
+     * @return word address of the zero-terminated string, allocating it if it is not pooled yet
+     */
+    public int intern(String string) {
+        Integer address = addresses.get(string);
+        if (address != null)
+            return address;
+
+        byte[] bytes = new byte[string.length() + 1];
+        for (int i = 0; i < string.length(); i++)
+            bytes[i] = (byte) string.charAt(i);
+
+        int start = data.allocBytes(bytes);
+
+        if (nBlocks == blockStarts.length) {
+            blockStarts = Arrays.copyOf(blockStarts, nBlocks * 2);
+            blockSizes = Arrays.copyOf(blockSizes, nBlocks * 2);
+        }
+        blockStarts[nBlocks] = start;
+        blockSizes[nBlocks++] = (bytes.length + 3) / 4;
+
+        if (shareSuffixes) {
+            // every suffix starting at a word boundary is addressable, including "" at the terminator
+            for (int offset = 0; offset <= string.length(); offset += 4)
+                addresses.putIfAbsent(string.substring(offset), start + offset / 4);
+        } else {
+            addresses.put(string, start);
+        }
+
+        return start;
+    }
+
+    /**
+     * @param usedAddresses sorted addresses of all strings which are printed
+     * @return the words of all allocated strings which do not contain any of the used addresses
+     */
+    public BitSet unusedWords(int[] usedAddresses) {
+        BitSet unused = new BitSet();
+        for (int block = 0; block < nBlocks; block++) {
+            int start = blockStarts[block], end = start + blockSizes[block];
+
+            int index = Arrays.binarySearch(usedAddresses, start);
+            if (index < 0)
+                index = -index - 1;
+            if (index == usedAddresses.length || usedAddresses[index] >= end)
+                unused.set(start, end);
+        }
+        return unused;
+    }
+}
@@ -0,0 +1,70 @@
+package yapl.impl;
+
+import static yapl.impl.Instruction.*;
+
+/**
+ * Rewrites the tail calls in the code of a single procedure, calls directly followed by <code>exit; return</code>:
+ * <ul>
+ *     <li>a call of the procedure itself pops the arguments into the parameters, clears the local variables
+ *     like <code>enter</code> and jumps back to the first instruction after <code>enter</code>, so the
+ *     recursion becomes a loop</li>
+ *     <li>other calls leave the frame first, <code>exit; jmp P</code>, so the callee returns directly
+ *     to the caller</li>
+ * </ul>
+ * Both run in constant space on the procedure stack. Calls of labels which are not assigned yet are kept.
+ * Must run after the {@link Peephole} optimizer, which does not see the inserted instructions.
+ */
+public class TailCalls {
+
+    private static final int NONE = -1;
+
+    private static final Instruction[] SHORT_STORES = {store0, store1, store2, store3};
+
+    private TailCalls() {
+    }
+
+    public static void rewrite(ProcedureCode code) {
+        int nParams = code.operand(0);
+        int[] clearedLocals = null;
+
+        for (int i = 1; i < code.size(); i++) {
+            if (code.isDeleted(i) || code.instruction(i) != call || code.isPending(i))
+                continue;
+
+            int exitIndex = code.next(i);
+            int returnIndex = exitIndex == NONE ? NONE : code.next(exitIndex);
+            if (returnIndex == NONE || code.instruction(exitIndex) != exit || code.instruction(returnIndex) != return_)
+                continue;
+
+            if (code.target(i) == 0) {
+                if (clearedLocals == null)
+                    clearedLocals = InlineCandidate.clearedLocals(code);
+
+                for (int word = nParams - 1; word >= 0; word--)
+                    insertStore(code, i, word);
+                for (int word : clearedLocals) {
+                    code.insertBefore(i, const0, 0);
+                    insertStore(code, i, word);
+                }
+                code.replace(i, jmp, 0);
+                code.retarget(i, 1);
+            } else {
+                code.insertBefore(i, exit, 0);
+                code.replace(i, jmp, code.operand(i));
+            }
+
+            if (!code.isReferenced(exitIndex)) {
+                code.delete(exitIndex);
+                if (!code.isReferenced(returnIndex))
+                    code.delete(returnIndex);
+            }
+        }
+    }
+
+    private static void insertStore(ProcedureCode code, int index, int word) {
+        if (word <= 3)
+            code.insertBefore(index, SHORT_STORES[word], 0);
+        else
+            code.insertBefore(index, store, word);
+    }
+}
@@ -0,0 +1,42 @@
+package yapl.impl;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Removes the blocks which cannot be reached from the entry block. Their frame allocations are kept,
+ * so the following code gets the same words of the frame.
+ */
+public class UnreachableBlocks implements IrPass {
+
+    @Override
+    public String name() {
+        return "unreachable-blocks";
+    }
+
+    @Override
+    public void run(ControlFlowGraph graph) {
+        Set<BasicBlock> reachable = new HashSet<>();
+        Deque<BasicBlock> worklist = new ArrayDeque<>();
+        reachable.add(graph.entry());
+        worklist.add(graph.entry());
+        while (!worklist.isEmpty())
+            for (BasicBlock successor : worklist.poll().successors)
+                if (reachable.add(successor))
+                    worklist.add(successor);
+
+        boolean changed = false;
+        for (BasicBlock block : graph.blocks) {
+            if (reachable.contains(block) || block == graph.exit())
+                continue;
+
+            changed |= block.instructions.removeIf(instruction ->
+                    instruction.op != IrOp.ALLOC_STACK && instruction.op != IrOp.FREE_STACK);
+        }
+
+        if (changed)
+            graph.update();
+    }
+}
@@ -1,6 +1,7 @@
 package yapl.impl;
 
 import yapl.interfaces.Attrib;
+import yapl.interfaces.Comparison;
 import yapl.interfaces.Symbol;
 import yapl.lib.Type;
 import yapl.lib.YaplException;
@@ -16,6 +17,17 @@ public class YaplAttrib implements Attrib {
 
     private int value;
 
+    /**
+     * comparison of a {@link Attrib#Condition}; null if the condition is a boolean value on the stack
+     */
+    private Comparison comparison;
+
+    /**
+     * labels jumped to by a short-circuit {@link Attrib#Condition} once it is known to be true/false,
+     * -1 if there are no such jumps
+     */
+    private int trueLabel = -1, falseLabel = -1;
+
     /**
      * Shortcut for constructing a INT constant.
      *
@@ -50,6 +62,30 @@ public class YaplAttrib implements Attrib {
             kind = Attrib.RegAddress;
     }
 
+    /**
+     * Shortcut for constructing a branch condition.
+     *
+     * @param comparison comparison of the two top-most operands on the expression stack
+     */
+    public YaplAttrib(Comparison comparison) {
+        this(comparison, -1, -1);
+    }
+
+    /**
+     * Shortcut for constructing a short-circuit branch condition.
+     *
+     * @param comparison comparison of the two top-most operands on the expression stack,
+     *                   null for a boolean value on the expression stack
+     * @param trueLabel  label jumped to if the condition is already known to be true, -1 if none
+     * @param falseLabel label jumped to if the condition is already known to be false, -1 if none
+     */
+    public YaplAttrib(Comparison comparison, int trueLabel, int falseLabel) {
+        this(Attrib.Condition, Type.BOOL);
+        this.comparison = comparison;
+        this.trueLabel = trueLabel;
+        this.falseLabel = falseLabel;
+    }
+
     public YaplAttrib(int kind, Type type) {
         this.kind = kind;
         this.type = type;
@@ -59,7 +95,11 @@ public class YaplAttrib implements Attrib {
 
         switch (symbol.getKind()) {
             case Symbol.Constant:
+                // constants are used as immediate values, they have no storage
                 constant = true;
+                kind = Attrib.Constant;
+                value = ((YaplSymbol) symbol).getValue();
+                break;
 
             case Symbol.Variable:
             case Symbol.Parameter:
@@ -99,6 +139,28 @@ public class YaplAttrib implements Attrib {
         return value;
     }
 
+    /**
+     * @return value of a BOOL constant
+     */
+    public boolean getBoolValue() {
+        return value == BackendMJ.staticBoolValue(true);
+    }
+
+    /**
+     * @return comparison of a {@link Attrib#Condition}
+     */
+    public Comparison getComparison() {
+        return comparison;
+    }
+
+    public int getTrueLabel() {
+        return trueLabel;
+    }
+
+    public int getFalseLabel() {
+        return falseLabel;
+    }
+
     @Override
     public boolean isGlobal() {
         return global;
@@ -13,6 +13,8 @@ public class YaplSymbol implements yapl.interfaces.Symbol {
     private final String name;
     private yapl.interfaces.Symbol nextSymbol;
     private boolean returnSeen;
+    private int label = -1;
+    private int value;
 
     @Override
     public int getKind() {
@@ -119,4 +121,26 @@ public class YaplSymbol implements yapl.interfaces.Symbol {
     }
 
 
+
+    /**
+     * @return entry label handle of a procedure symbol, -1 if none was assigned yet
+     */
+    public int getLabel() {
+        return label;
+    }
+
+    public void setLabel(int label) {
+        this.label = label;
+    }
+
+    /**
+     * @return value of a constant symbol
+     */
+    public int getValue() {
+        return value;
+    }
+
+    public void setValue(int value) {
+        this.value = value;
+    }
 }
@@ -48,6 +48,12 @@ public interface Attrib {
 	public static final byte ArrayElement = 5;
 	
 	public static final byte RecordField = 6;
+
+	/** Branch condition which has not been evaluated to a boolean value yet,
+	 * i.e. a comparison of the two top-most operands on the expression stack.
+	 * Its value must be loaded before any other code is emitted.
+	 */
+	public static final byte Condition = 7;
 	
 	/** Return the kind of operand represented by this object.
 	 * 
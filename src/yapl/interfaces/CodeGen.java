@@ -28,10 +28,10 @@ public interface CodeGen {
 	/**
 	 * Generate a new address label. Labels must be unique.
 	 */
-	public String newLabel();
+	public int newLabel();
 
 	/** Assign an address label to the current code address. */
-	public void assignLabel(String label);
+	public void assignLabel(int label);
 
 	/**
 	 * Load the value represented by <code>attr</code> into a register
@@ -240,6 +240,20 @@ public interface CodeGen {
 	public Attrib op2(Attrib x, Token op, Attrib y) 
 	throws YaplException;
 
+	/**
+	 * Generate code for the left operand <code>x</code> of a short-circuit
+	 * boolean operation (And, Or) before the right operand is evaluated,
+	 * i.e. jump over the right operand if the result is already known.
+	 * 
+	 * @param x
+	 *            the left operand.
+	 * @param op
+	 *            the operator symbol.
+	 * @return the left operand to be passed to {@link #op2(Attrib, Token, Attrib)}.
+	 */
+	public Attrib shortCircuit(Attrib x, Token op)
+	throws YaplException;
+
 	/**
 	 * Check types and generate code for relational operation
 	 * <code>x op y</code>. The result is represented by <code>x</code>,
@@ -353,10 +367,29 @@ public interface CodeGen {
 	 * Generate code jumping to <code>label</code> if
 	 * <code>condition</code> is <code>false</code>.
 	 */
-	public void branchIfFalse(Attrib condition, String label)
+	public void branchIfFalse(Attrib condition, int label)
 	throws YaplException;
 
 	/** Generate code unconditionally jumping to <code>label</code>. */
-	public void jump(String label);
+	public void jump(int label);
+
+	/** Start a block with local variables. */
+	public void enterBlock();
+
+	/**
+	 * End the block started by the matching {@link #enterBlock()}.
+	 * The storage of its local variables may be reused afterwards.
+	 */
+	public void exitBlock();
+
+	/**
+	 * Start a region of statements which are never executed, e.g. because
+	 * of a constant condition. Code generated within the region is dropped.
+	 * Regions may be nested.
+	 */
+	public void beginDeadCode();
+
+	/** End a region started by {@link #beginDeadCode()}. */
+	public void endDeadCode();
 
 }
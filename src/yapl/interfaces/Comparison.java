@@ -0,0 +1,80 @@
+package yapl.interfaces;
+
+/**
+ * Relational and equality operators of a branch condition,
+ * comparing the two top-most operands on the expression stack.
+ */
+public enum Comparison {
+    /** a == b */
+    EQ,
+    /** a != b */
+    NE,
+    /** a &lt; b */
+    LT,
+    /** a &lt;= b */
+    LE,
+    /** a &gt; b */
+    GT,
+    /** a &gt;= b */
+    GE;
+
+    /**
+     * @return the comparison which is true iff this one is false
+     */
+    public Comparison negate() {
+        switch (this) {
+            case EQ:
+                return NE;
+            case NE:
+                return EQ;
+            case LT:
+                return GE;
+            case LE:
+                return GT;
+            case GT:
+                return LE;
+            default:
+            case GE:
+                return LT;
+        }
+    }
+
+    /**
+     * @return the comparison of the swapped operands, i.e. b ~ a iff a this b
+     */
+    public Comparison swap() {
+        switch (this) {
+            case LT:
+                return GT;
+            case LE:
+                return GE;
+            case GT:
+                return LT;
+            case GE:
+                return LE;
+            default:
+                return this;
+        }
+    }
+
+    /**
+     * @return the result of comparing two constants
+     */
+    public boolean evaluate(int a, int b) {
+        switch (this) {
+            case EQ:
+                return a == b;
+            case NE:
+                return a != b;
+            case LT:
+                return a < b;
+            case LE:
+                return a <= b;
+            case GT:
+                return a > b;
+            default:
+            case GE:
+                return a >= b;
+        }
+    }
+}
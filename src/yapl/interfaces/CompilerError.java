@@ -83,6 +83,12 @@ public interface CompilerError {
 	
 	/** Too many array dimensions. */
 	public static final int TooManyDims          = 51;
+
+	/** Code of the program too large for the target machine. */
+	public static final int CodeTooLarge         = 52;
+
+	/** Too many parameters for a procedure frame. */
+	public static final int TooManyParams        = 53;
 	
     /* --- End of error numbers --- */
 	
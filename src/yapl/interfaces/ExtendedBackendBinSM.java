@@ -1,22 +1,172 @@
 package yapl.interfaces;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+
 public interface ExtendedBackendBinSM extends BackendBinSM {
 
+    /*--- address labels (int handles) ---*/
+
+    /**
+     * Create a new, unassigned address label.
+     * Label handles are an alternative to the symbolic labels of {@link BackendBinSM},
+     * they do not require any string building or hashing.
+     *
+     * @return handle of the new label
+     */
+    int newLabel();
+
+    /**
+     * @return number of bytes of code emitted so far, which is the address of the next instruction
+     */
+    int codeSize();
+
+    /**
+     * Assign a label to the current code address.
+     * All pending references to the label are backpatched immediately.
+     *
+     * @see #assignLabel(String)
+     */
+    void assignLabel(int label);
+
+    /**
+     * Redirect all jumps to the unassigned label <code>label</code> to <code>into</code>,
+     * as if both labels were assigned to the same address.
+     * <code>label</code> must not be used afterwards.
+     */
+    void mergeLabels(int label, int into);
+
+    /**
+     * @see #branchIf(boolean, String)
+     */
+    void branchIf(boolean value, int label);
+
+    /**
+     * Emit code for a conditional jump to the given label if the comparison of the
+     * two top-most operands on the expression stack is true. Both operands are popped.
+     * <pre>
+     * Runtime effect: b = pop(), a = pop(), if (a ~ b) jump
+     * </pre>
+     */
+    void branchIf(Comparison comparison, int label);
+
+    /**
+     * @see #jump(String)
+     */
+    void jump(int label);
+
+    /**
+     * @see #callProc(String)
+     */
+    void callProc(int label);
+
+    /**
+     * @see #enterProc(String, int, boolean)
+     */
+    void enterProc(int label, int nParams, boolean main);
+
+    /**
+     * @see #exitProc(String)
+     */
+    void exitProc(int label);
+
     /**
      * Emit code for comparing the two top-most operands on the expression stack for inequality.
      * The boolean result value is pushed onto the expression stack.
      */
     void isNotEqual();
 
+    /**
+     * Emit code for shifting the second operand on the expression stack to the left.
+     * <pre>
+     * Runtime effect: b = pop(), a = pop(), push(a &lt;&lt; b)
+     * </pre>
+     */
+    void shiftLeft();
+
+    /**
+     * Emit code for an arithmetic shift of the second operand on the expression stack to the right,
+     * which keeps the sign of the operand.
+     * <pre>
+     * Runtime effect: b = pop(), a = pop(), push(a &gt;&gt; b)
+     * </pre>
+     */
+    void shiftRight();
+
+    /**
+     * Allocate words of the current stack frame for local variables, which start with 0 like the words
+     * of a new frame. The words are cleared whenever the allocation is executed, e.g. on every iteration
+     * of a loop, and also if they are reused after {@link #freeStack(int, int)}.
+     *
+     * @return offset of the first allocated word
+     */
+    int allocStackCleared(int words);
+
+    /**
+     * Release words of the current stack frame allocated with {@link #allocStack(int)},
+     * so they can be reused by later allocations of the same procedure.
+     */
+    void freeStack(int offset, int words);
+
+    /**
+     * Emit code for discarding the top-most operand of the expression stack.
+     */
+    void pop();
+
+    /**
+     * Start a region of code which is never executed, e.g. the branch of an If statement
+     * with a constant condition. Regions may be nested.
+     */
+    void beginDeadCode();
+
+    /**
+     * End a region started by {@link #beginDeadCode()}. All code emitted within the
+     * outermost region is dropped, together with the labels assigned and jumps emitted there.
+     * Labels assigned in the region must not be referenced from outside.
+     */
+    void endDeadCode();
+
     /**
      * Emit code for logical NOT operation on expression stack.
      * Assumes a numerical representation of boolean values.
      */
     void not();
 
+    /**
+     * Emit code for writing the boolean value on top of the expression stack
+     * as "True" or "False" to standard output. The value is popped.
+     */
+    void writeBoolean();
+
     /**
      * Reads an integer from stdin.
      */
     void readInteger();
 
+    /**
+     * Substitute the body of small procedures for calls to them, if the size of the inlined code
+     * exceeds the size of the call by at most the given number of bytes. A negative threshold
+     * disables inlining. Only affects procedures completed afterwards.
+     */
+    void setInlineThreshold(int threshold);
+
+    /**
+     * Stream the code of completed procedures to the given channel while it is generated,
+     * instead of keeping all code in memory. Must be called before any code is emitted.
+     * The object file is completed by {@link #writeObjectFile(FileChannel)} with the same channel.
+     */
+    void beginObjectFile(FileChannel channel);
+
+    /**
+     * Write the object file to the given channel, using a single gathering write
+     * for header, code and static data.
+     */
+    void writeObjectFile(FileChannel channel) throws IOException;
+
+    /**
+     * Write the object file to the given path through a memory mapping of the file.
+     */
+    void writeObjectFileMapped(Path path) throws IOException;
+
 }
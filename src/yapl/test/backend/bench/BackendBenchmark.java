@@ -0,0 +1,344 @@
+package yapl.test.backend.bench;
+
+import yapl.impl.BackendMJ;
+import yapl.interfaces.BackendBinSM;
+import yapl.interfaces.ExtendedBackendBinSM;
+import yapl.interfaces.MemoryRegion;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Micro benchmark for the MJ backend: emits large synthetic programs through
+ * the {@link BackendBinSM} interface and reports the time needed for code
+ * emission, backpatching and writing the object file.
+ * The label-heavy variants compare symbolic labels with int label handles.
+ * The procedures are split into several programs, whose code stays below the near addresses of 32K.
+ * <p>
+ * Usage: java yapl.test.backend.bench.BackendBenchmark [procedures] [runs]
+ */
+public class BackendBenchmark {
+
+    /**
+     * procedures per program, of about 2.4K and 5.3K bytes of code each
+     */
+    private static final int PROCEDURES_PER_PROGRAM = 12, NESTED_PROCEDURES_PER_PROGRAM = 5;
+
+    public static void main(String[] args) throws IOException {
+        int procedures = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        System.out.printf("%d procedures%n", procedures);
+        measure("emission", runs, () -> emitPrograms(procedures, PROCEDURES_PER_PROGRAM,
+                count -> emitProgram(count)));
+        measure("nested control flow, string labels", runs, () -> emitPrograms(procedures, NESTED_PROCEDURES_PER_PROGRAM,
+                count -> emitNestedProgram(count, true)));
+        measure("nested control flow, int labels", runs, () -> emitPrograms(procedures, NESTED_PROCEDURES_PER_PROGRAM,
+                count -> emitNestedProgram(count, false)));
+    }
+
+    private interface ProgramEmission {
+        /**
+         * @return number of bytes written to the object file
+         */
+        int run(int procedures) throws IOException;
+    }
+
+    /**
+     * Emits the procedures as programs of at most perProgram procedures.
+     *
+     * @return number of bytes written to all object files
+     */
+    private static int emitPrograms(int procedures, int perProgram, ProgramEmission program) throws IOException {
+        int size = 0;
+        for (int first = 0; first < procedures; first += perProgram)
+            size += program.run(Math.min(perProgram, procedures - first));
+        return size;
+    }
+
+    private interface Emission {
+        /**
+         * @return number of bytes written to the object file
+         */
+        int run() throws IOException;
+    }
+
+    private static void measure(String name, int runs, Emission emission) throws IOException {
+        // warm up the JIT before measuring
+        for (int i = 0; i < 5; i++)
+            emission.run();
+
+        long best = Long.MAX_VALUE, total = 0;
+        int codeSize = 0;
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            codeSize = emission.run();
+            long time = System.nanoTime() - start;
+
+            best = Math.min(best, time);
+            total += time;
+        }
+
+        System.out.printf("%s: %d bytes/run, best %.2f ms, mean %.2f ms%n",
+                name, codeSize, best / 1e6, total / 1e6 / runs);
+    }
+
+    /**
+     * Emits a program consisting of the given number of procedures, each holding
+     * a loop with nested conditionals, arithmetic and a procedure call.
+     *
+     * @return number of bytes written to the object file
+     */
+    private static int emitProgram(int procedures) throws IOException {
+        BackendBinSM backend = new BackendMJ();
+        int label = 0;
+
+        for (int p = 0; p < procedures; p++) {
+            backend.enterProc("proc" + p, 2, false);
+            int local = backend.allocStack(1);
+
+            for (int i = 0; i < 50; i++) {
+                String loop = "l" + label++, end = "l" + label++, skip = "l" + label++;
+
+                backend.assignLabel(loop);
+                backend.loadWord(MemoryRegion.STACK, local);
+                backend.loadConst(1000 + i);
+                backend.isLess();
+                backend.branchIf(false, end);
+
+                backend.loadWord(MemoryRegion.STACK, backend.paramOffset(0));
+                backend.loadWord(MemoryRegion.STACK, backend.paramOffset(1));
+                backend.isGreater();
+                backend.branchIf(false, skip);
+                backend.loadWord(MemoryRegion.STACK, local);
+                backend.loadConst(i);
+                backend.callProc("proc" + p);
+                backend.storeWord(MemoryRegion.STACK, local);
+                backend.assignLabel(skip);
+
+                backend.loadWord(MemoryRegion.STACK, local);
+                backend.loadConst(1);
+                backend.add();
+                backend.storeWord(MemoryRegion.STACK, local);
+                backend.jump(loop);
+                backend.assignLabel(end);
+            }
+
+            backend.exitProc("proc" + p + "_end");
+        }
+
+        // the procedures are called, so they are kept in the object file
+        backend.enterProc("main", 0, true);
+        backend.writeString(backend.allocStringConstant("benchmark"));
+        int result = backend.allocStaticData(1);
+        for (int p = 0; p < procedures; p++) {
+            backend.loadConst(0);
+            backend.loadConst(p);
+            backend.callProc("proc" + p);
+            backend.storeWord(MemoryRegion.STATIC, result);
+        }
+        backend.exitProc("main_end");
+
+        CountingOutputStream out = new CountingOutputStream();
+        backend.writeObjectFile(out);
+        return out.count;
+    }
+
+    /**
+     * Emits a program consisting of the given number of procedures, each holding
+     * nested While and If/Else statements as generated by the code generator,
+     * which makes label management dominate the emission time.
+     *
+     * @param namedLabels whether to use the String based labels of {@link BackendBinSM}
+     *                    instead of int label handles
+     * @return number of bytes written to the object file
+     */
+    private static int emitNestedProgram(int procedures, boolean namedLabels) throws IOException {
+        ExtendedBackendBinSM backend = new BackendMJ();
+        Labels labels = namedLabels ? new NamedLabels(backend) : new HandleLabels(backend);
+
+        int[] procLabels = new int[procedures];
+        for (int p = 0; p < procedures; p++)
+            procLabels[p] = labels.newLabel();
+
+        for (int p = 0; p < procedures; p++) {
+            labels.enterProc(procLabels[p], 1);
+            int local = backend.allocStack(1);
+
+            for (int i = 0; i < 10; i++)
+                emitNested(backend, labels, local, 4);
+
+            backend.loadWord(MemoryRegion.STACK, local);
+            labels.callProc(procLabels[(p + 1) % procedures]);
+            backend.storeWord(MemoryRegion.STACK, local);
+            labels.exitProc(labels.newLabel());
+        }
+
+        // the procedures call each other in a cycle, which is entered from main
+        labels.enterMain(labels.newLabel());
+        backend.writeString(backend.allocStringConstant("benchmark"));
+        backend.loadConst(0);
+        labels.callProc(procLabels[0]);
+        backend.storeWord(MemoryRegion.STATIC, backend.allocStaticData(1));
+        labels.exitProc(labels.newLabel());
+
+        CountingOutputStream out = new CountingOutputStream();
+        backend.writeObjectFile(out);
+        return out.count;
+    }
+
+    /**
+     * While local < depth Do If local > 0 Then [nested] Else [nested] EndIf; local := local + 1 EndWhile
+     */
+    private static void emitNested(ExtendedBackendBinSM backend, Labels labels, int local, int depth) {
+        int whileLabel = labels.newLabel(), endWhileLabel = labels.newLabel();
+        int elseLabel = labels.newLabel(), endIfLabel = labels.newLabel();
+
+        labels.assignLabel(whileLabel);
+        backend.loadWord(MemoryRegion.STACK, local);
+        backend.loadConst(depth);
+        backend.isLess();
+        labels.branchIf(false, endWhileLabel);
+
+        backend.loadWord(MemoryRegion.STACK, local);
+        backend.loadConst(0);
+        backend.isGreater();
+        labels.branchIf(false, elseLabel);
+        if (depth > 1)
+            emitNested(backend, labels, local, depth - 1);
+        labels.jump(endIfLabel);
+        labels.assignLabel(elseLabel);
+        if (depth > 1)
+            emitNested(backend, labels, local, depth - 1);
+        labels.assignLabel(endIfLabel);
+
+        backend.loadWord(MemoryRegion.STACK, local);
+        backend.loadConst(1);
+        backend.add();
+        backend.storeWord(MemoryRegion.STACK, local);
+        labels.jump(whileLabel);
+        labels.assignLabel(endWhileLabel);
+    }
+
+    /**
+     * Label operations of the backend, either by label handle or by label name.
+     */
+    private static abstract class Labels {
+        abstract int newLabel();
+
+        abstract void assignLabel(int label);
+
+        abstract void branchIf(boolean value, int label);
+
+        abstract void jump(int label);
+
+        abstract void callProc(int label);
+
+        abstract void enterProc(int label, int nParams);
+
+        abstract void enterMain(int label);
+
+        abstract void exitProc(int label);
+    }
+
+    private static class HandleLabels extends Labels {
+        private final ExtendedBackendBinSM backend;
+
+        HandleLabels(ExtendedBackendBinSM backend) {
+            this.backend = backend;
+        }
+
+        int newLabel() {
+            return backend.newLabel();
+        }
+
+        void assignLabel(int label) {
+            backend.assignLabel(label);
+        }
+
+        void branchIf(boolean value, int label) {
+            backend.branchIf(value, label);
+        }
+
+        void jump(int label) {
+            backend.jump(label);
+        }
+
+        void callProc(int label) {
+            backend.callProc(label);
+        }
+
+        void enterProc(int label, int nParams) {
+            backend.enterProc(label, nParams, false);
+        }
+
+        void enterMain(int label) {
+            backend.enterProc(label, 0, true);
+        }
+
+        void exitProc(int label) {
+            backend.exitProc(label);
+        }
+    }
+
+    /**
+     * Builds label names the way the code generator used to ("label " + counter).
+     */
+    private static class NamedLabels extends Labels {
+        private final BackendBinSM backend;
+        private final List<String> names = new ArrayList<>();
+
+        NamedLabels(BackendBinSM backend) {
+            this.backend = backend;
+        }
+
+        int newLabel() {
+            names.add("label " + names.size());
+            return names.size() - 1;
+        }
+
+        void assignLabel(int label) {
+            backend.assignLabel(names.get(label));
+        }
+
+        void branchIf(boolean value, int label) {
+            backend.branchIf(value, names.get(label));
+        }
+
+        void jump(int label) {
+            backend.jump(names.get(label));
+        }
+
+        void callProc(int label) {
+            backend.callProc(names.get(label));
+        }
+
+        void enterProc(int label, int nParams) {
+            backend.enterProc(names.get(label), nParams, false);
+        }
+
+        void enterMain(int label) {
+            backend.enterProc(names.get(label), 0, true);
+        }
+
+        void exitProc(int label) {
+            backend.exitProc(names.get(label));
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        int count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
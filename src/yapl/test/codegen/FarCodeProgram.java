@@ -0,0 +1,176 @@
+package yapl.test.codegen;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Generates a YAPL test program whose code is larger than the near addresses of 32K, together with its
+ * expected output, which is computed by the generator itself.
+ * <p>
+ * The procedures come in groups of three: one with a loop, which is placed before the other procedures
+ * by the layout, one with conditional branches only, which calls the first one, and one calling the
+ * second one. The main procedure calls all of them in a loop, so calls, jumps and conditional branches
+ * to targets above 32K occur in loops as well as in straight code.
+ * <p>
+ * Usage: java yapl.test.codegen.FarCodeProgram procedures yapl-file true-file
+ */
+public class FarCodeProgram {
+
+    private static final String NAME = "farcode";
+
+    /**
+     * iterations of the loop in the main procedure
+     */
+    private static final int ROUNDS = 2;
+
+    /**
+     * the running sum is written after every group of that many calls
+     */
+    private static final int CALLS_PER_LINE = 60;
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: java yapl.test.codegen.FarCodeProgram procedures yapl-file true-file");
+            System.exit(1);
+        }
+
+        int procedures = Integer.parseInt(args[0]);
+        try (PrintWriter yapl = new PrintWriter(Files.newBufferedWriter(Paths.get(args[1])));
+             PrintWriter expected = new PrintWriter(Files.newBufferedWriter(Paths.get(args[2])))) {
+            writeProgram(yapl, procedures);
+            writeOutput(expected, procedures);
+        }
+    }
+
+    private static void writeProgram(PrintWriter out, int procedures) {
+        out.println("/* CodeGen test input - generated by FarCodeProgram, code larger than 32K.");
+        out.println(" */");
+        out.println("Program " + NAME);
+        out.println("Declare");
+        out.println("    int r, k;");
+        out.println();
+
+        for (int p = 0; p < procedures; p++) {
+            switch (p % 3) {
+                case 0:
+                    out.println("Procedure int f" + p + "(int a, int b)");
+                    out.println("Declare");
+                    out.println("    int i, s;");
+                    out.println("Begin");
+                    out.println("    While i < 8 Do");
+                    out.println("        If i % 2 == 0 And a > b Then");
+                    out.println("            s := s + i * 3 + a;");
+                    out.println("        Else");
+                    out.println("            If s > 20 Or b < 0 Then");
+                    out.println("                s := s - 1;");
+                    out.println("            Else");
+                    out.println("                s := s + b;");
+                    out.println("            EndIf;");
+                    out.println("        EndIf;");
+                    out.println("        i := i + 1;");
+                    out.println("    EndWhile;");
+                    out.println("    Return s;");
+                    break;
+                case 1:
+                    out.println("Procedure int f" + p + "(int a, int b)");
+                    out.println("Declare");
+                    out.println("    int s;");
+                    out.println("Begin");
+                    out.println("    If a > b Then");
+                    out.println("        s := a - b;");
+                    out.println("    Else");
+                    out.println("        s := b - a;");
+                    out.println("    EndIf;");
+                    out.println("    If s % 3 == 0 Then");
+                    out.println("        s := s + f" + (p - 1) + "(s, a);");
+                    out.println("    EndIf;");
+                    out.println("    If s > 50 And a < 100 Or b == 7 Then");
+                    out.println("        s := s / 2;");
+                    out.println("    EndIf;");
+                    out.println("    Return s;");
+                    break;
+                default:
+                    out.println("Procedure int f" + p + "(int a, int b)");
+                    out.println("Begin");
+                    out.println("    If a % 2 == 1 Then");
+                    out.println("        Return f" + (p - 1) + "(a + 1, b) + 1;");
+                    out.println("    EndIf;");
+                    out.println("    Return f" + (p - 1) + "(b, a) - 1;");
+                    break;
+            }
+            out.println("End f" + p + ";");
+            out.println();
+        }
+
+        out.println("Begin");
+        out.println("    Write \"--- Start " + NAME + " ---\";");
+        out.println("    writeln();");
+        out.println("    While k < " + ROUNDS + " Do");
+        for (int p = 0; p < procedures; p++) {
+            out.println("        r := r + f" + p + "(" + argument(p) + ", k + 3);");
+            if ((p + 1) % CALLS_PER_LINE == 0 || p == procedures - 1) {
+                out.println("        writeint(r);");
+                out.println("        writeln();");
+            }
+        }
+        out.println("        k := k + 1;");
+        out.println("    EndWhile;");
+        out.println("    Write \"--- End " + NAME + " ---\";");
+        out.println("    writeln();");
+        out.println("End " + NAME + ".");
+    }
+
+    /**
+     * @return the first argument of the call to procedure p in the main procedure
+     */
+    private static int argument(int p) {
+        return p % 17;
+    }
+
+    private static void writeOutput(PrintWriter out, int procedures) {
+        out.println("--- Start " + NAME + " ---");
+        int r = 0;
+        for (int k = 0; k < ROUNDS; k++) {
+            for (int p = 0; p < procedures; p++) {
+                r += call(p, argument(p), k + 3);
+                if ((p + 1) % CALLS_PER_LINE == 0 || p == procedures - 1)
+                    out.println(r);
+            }
+        }
+        out.println("--- End " + NAME + " ---");
+    }
+
+    /**
+     * @return the result of procedure p of the generated program
+     */
+    private static int call(int p, int a, int b) {
+        switch (p % 3) {
+            case 0: {
+                int s = 0;
+                for (int i = 0; i < 8; i++) {
+                    if (i % 2 == 0 && a > b)
+                        s = s + i * 3 + a;
+                    else if (s > 20 || b < 0)
+                        s = s - 1;
+                    else
+                        s = s + b;
+                }
+                return s;
+            }
+            case 1: {
+                int s = a > b ? a - b : b - a;
+                if (s % 3 == 0)
+                    s = s + call(p - 1, s, a);
+                if (s > 50 && a < 100 || b == 7)
+                    s = s / 2;
+                return s;
+            }
+            default:
+                if (a % 2 == 1)
+                    return call(p - 1, a + 1, b) + 1;
+                return call(p - 1, b, a) - 1;
+        }
+    }
+}